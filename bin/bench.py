@@ -0,0 +1,38 @@
+#!/usr/bin/python
+
+# This file measures how many user instructions per second the processor
+# executes with the quiet interpreter (no debug flags) and with the traced
+# interpreter. Passing "-d q" selects the traced interpreter without
+# printing anything, since no code uses the 'q' debug flag.
+#
+# Run it from a project directory, e.g. "cd proj2; ../bin/bench.py". The
+# program is looked up in the test directory, so the default is
+# test/matmult.coff.
+# Wall-clock time includes starting the JVM, so longer programs such as
+# sort.coff show the difference more clearly.
+
+from __future__ import print_function
+import os, re, subprocess, sys, time
+
+program = sys.argv[1] if len(sys.argv) > 1 else 'matmult.coff'
+runs = 5
+
+def measure(extra):
+    best = None
+    for i in range(runs):
+        start = time.time()
+        output = subprocess.check_output(
+            ['java', 'nachos.machine.Machine', '-x', program] + extra,
+            stderr=subprocess.STDOUT)
+        elapsed = time.time() - start
+        ticks = re.search(r'Ticks: total \d+, kernel \d+, user (\d+)',
+                          output.decode())
+        rate = int(ticks.group(1)) / elapsed
+        if best is None or rate > best:
+            best = rate
+    return best
+
+quiet = measure([])
+traced = measure(['-d', 'q'])
+print('%s: quiet %.0f inst/s, traced %.0f inst/s, speedup %.2fx'
+      % (os.path.basename(program), quiet, traced, quiet / traced))
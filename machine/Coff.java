@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import java.io.EOFException;
+import java.util.Arrays;
 
 /**
  * A COFF (common object file format) loader.
@@ -89,6 +90,83 @@ public class Coff {
 		    throw e;
 		}
 	    }
+
+	    Processor processor = Machine.processor();
+	    if (processor != null && processor.profiler != null) {
+		loadProcedures(Lib.bytesToInt(headers, 8));
+		processor.profiler.addProgram(this, file.getName());
+	    }
+	}
+    }
+
+    /**
+     * Load the names and addresses of the procedures in this executable from
+     * its ECOFF symbol table, if it has one. Only the profiler uses them, and
+     * reading them takes simulated time, so they are only loaded when
+     * profiling.
+     *
+     * @param	symbolOffset	the file offset of the symbolic header.
+     */
+    private void loadProcedures(int symbolOffset) {
+	int length = file.length() - symbolOffset;
+	if (symbolOffset <= 0 || length < symbolicHeaderLength)
+	    return;
+
+	byte[] symbols = new byte[length];
+	Lib.strictReadFile(file, symbolOffset, symbols, 0, length);
+
+	if (Lib.bytesToUnsignedShort(symbols, 0) != symbolicMagic) {
+	    Lib.debug(dbgCoff, "\tno symbolic header");
+	    return;
+	}
+
+	try {
+	    // offsets in the symbolic header are file offsets
+	    int symOffset = Lib.bytesToInt(symbols, 36) - symbolOffset;
+	    int ssOffset = Lib.bytesToInt(symbols, 60) - symbolOffset;
+	    int numFiles = Lib.bytesToInt(symbols, 72);
+	    int fdOffset = Lib.bytesToInt(symbols, 76) - symbolOffset;
+
+	    int[] addresses = new int[0];
+	    String[] names = new String[0];
+	    int numProcedures = 0;
+
+	    for (int f=0; f<numFiles; f++) {
+		int fd = fdOffset + f*fileDescriptorLength;
+		int issBase = Lib.bytesToInt(symbols, fd+8);
+		int isymBase = Lib.bytesToInt(symbols, fd+16);
+		int csym = Lib.bytesToInt(symbols, fd+20);
+
+		for (int i=0; i<csym; i++) {
+		    int sym = symOffset + (isymBase+i)*symbolLength;
+		    int type = Lib.bytesToInt(symbols, sym+8) & 0x3F;
+		    if (type != stProc && type != stStaticProc)
+			continue;
+
+		    int name = ssOffset + issBase + Lib.bytesToInt(symbols, sym);
+		    if (numProcedures == addresses.length) {
+			addresses = Arrays.copyOf(addresses, numProcedures*2+8);
+			names = Arrays.copyOf(names, numProcedures*2+8);
+		    }
+
+		    // insert in address order
+		    int address = Lib.bytesToInt(symbols, sym+4);
+		    int j = numProcedures++;
+		    for (; j>0 && addresses[j-1] > address; j--) {
+			addresses[j] = addresses[j-1];
+			names[j] = names[j-1];
+		    }
+		    addresses[j] = address;
+		    names[j] = Lib.bytesToString(symbols, name,
+						 symbols.length - name);
+		}
+	    }
+
+	    procedureAddresses = Arrays.copyOf(addresses, numProcedures);
+	    procedureNames = Arrays.copyOf(names, numProcedures);
+	}
+	catch (ArrayIndexOutOfBoundsException e) {
+	    Lib.debug(dbgCoff, "\tbad symbol table");
 	}
     }
 
@@ -127,6 +205,34 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return the name of the procedure containing the specified address, if
+     * the procedures in this executable were loaded (they are only loaded when
+     * profiling).
+     *
+     * @param	vaddr	a virtual address in one of this executable's sections.
+     * @return	the name of the procedure, or <tt>null</tt> if not known.
+     */
+    public String getProcedureName(int vaddr) {
+	if (procedureAddresses == null)
+	    return null;
+
+	// find the last procedure that starts at or before vaddr
+	int low = 0, high = procedureAddresses.length-1, found = -1;
+	while (low <= high) {
+	    int middle = (low+high) >>> 1;
+	    if (procedureAddresses[middle] <= vaddr) {
+		found = middle;
+		low = middle+1;
+	    }
+	    else {
+		high = middle-1;
+	    }
+	}
+
+	return (found == -1) ? null : procedureNames[found];
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -143,9 +249,21 @@ public class Coff {
     protected int entryPoint;
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
+    /** The start addresses of the procedures, in order, if loaded. */
+    private int[] procedureAddresses = null;
+    /** The names of the procedures, in the same order. */
+    private String[] procedureNames = null;
 
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
+    // ECOFF symbol table layout
+    private static final int symbolicMagic = 0x7009;
+    private static final int symbolicHeaderLength = 96;
+    private static final int fileDescriptorLength = 72;
+    private static final int symbolLength = 12;
+    private static final int stProc = 6;
+    private static final int stStaticProc = 14;
+
     private static final char dbgCoff = 'c';
 }
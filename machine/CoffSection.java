@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -179,7 +178,7 @@ public class CoffSection {
         Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
         int pageSize = Processor.pageSize;
-        byte[] memory = Machine.processor().getMemory();
+        byte[] page = new byte[pageSize];
         int paddr = ppn * pageSize;
         int faddr = contentOffset + spn * pageSize;
         int initlen;
@@ -196,9 +195,9 @@ public class CoffSection {
             initlen = pageSize;
 
         if (initlen > 0)
-            Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+            Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-        Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+        Machine.processor().writePhysMem(paddr, page, 0, pageSize);
     }
 
     /**
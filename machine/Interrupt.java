@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	allocateSlots(initialSlots);
     }
 
     /**
@@ -120,17 +118,75 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Advance the simulated time, in kernel ticks, up to the last tick before
+     * the next interrupt is due, without running anything. A kernel with no
+     * thread ready to run would otherwise spin in its idle loop, ticking until
+     * an interrupt arrives; calling this first skips the ticks in which
+     * nothing would happen, so the interrupt is delivered by the idle loop's
+     * next tick, at exactly the time it would have been delivered anyway.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     */
+    public void skipIdleTicks() {
+	Lib.assertTrue(disabled());
+
+	// tracing prints every tick, so don't skip any
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = (slotTime[heap[0]] - stats.totalTicks - 1) /
+	    Stats.KernelTick;
+
+	if (ticks > 0) {
+	    stats.kernelTicks += ticks * Stats.KernelTick;
+	    stats.totalTicks += ticks * Stats.KernelTick;
+	}
+    }
+
+    private long schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (freeCount == 0)
+	    allocateSlots(slotTime.length * 2);
+
+	int slot = freeSlots[--freeCount];
+	slotTime[slot] = time;
+	slotId[slot] = numPendingInterruptsCreated++;
+	slotType[slot] = type;
+	slotHandler[slot] = handler;
 
-	pending.add(toOccur);
+	heap[numPending] = slot;
+	slotIndex[slot] = numPending;
+	siftUp(numPending++);
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	return ((long) slotGeneration[slot] << 32) | slot;
+    }
+
+    private boolean cancel(long handle) {
+	int slot = (int) handle;
+	int generation = (int) (handle >>> 32);
+
+	if (slot < 0 || slot >= slotTime.length ||
+	    slotGeneration[slot] != generation || slotIndex[slot] < 0)
+	    return false;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Cancelling the " + slotType[slot] +
+			       " interrupt handler at time = " +
+			       slotTime[slot]);
+
+	removeAt(slotIndex[slot]);
+	freeSlot(slot);
+	return true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +209,26 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long ticksUntilDue() {
+	// tracing prints every tick, so don't let the processor batch them
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return numPending == 0 ? Long.MAX_VALUE : 0;
+
+	long time = slotTime[heap[0]];
+
+	return Math.max(0, (time - privilege.stats.totalTicks - 1) /
+			Stats.UserTick);
+    }
+
+    private void advance(long userTicks) {
+	Lib.assertTrue(userTicks >= 0 && userTicks <= ticksUntilDue());
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += userTicks * Stats.UserTick;
+	stats.totalTicks += userTicks * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +237,27 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (numPending == 0 || slotTime[heap[0]] > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && slotTime[heap[0]] <= time) {
+	    int slot = heap[0];
+	    String type = slotType[slot];
+	    Runnable handler = slotHandler[slot];
 
-	    Lib.assertTrue(next.time <= time);
+	    removeAt(0);
+	    freeSlot(slot);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,62 +268,180 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// the heap is only partially ordered, so sort a copy by time
+	int[] order = Arrays.copyOf(heap, numPending);
+	for (int i=1; i<numPending; i++) {
+	    int slot = order[i], j = i;
+	    for (; j>0 && before(slot, order[j-1]); j--)
+		order[j] = order[j-1];
+	    order[j] = slot;
+	}
+
+	for (int i=0; i<numPending; i++) {
+	    System.out.println("  " + slotType[order[i]] +
+			       ", scheduled at " + slotTime[order[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Grow the pending interrupt slot pool to the specified capacity. New
+     * slots are added to the free list. Slots are never released, so once
+     * the pool is large enough, scheduling an interrupt allocates nothing.
+     */
+    private void allocateSlots(int capacity) {
+	int oldCapacity = (slotTime == null) ? 0 : slotTime.length;
+	Lib.assertTrue(capacity > oldCapacity);
+
+	slotTime = Arrays.copyOf(slotTime == null ? new long[0] : slotTime,
+				 capacity);
+	slotId = Arrays.copyOf(slotId == null ? new long[0] : slotId,
+			       capacity);
+	slotType = Arrays.copyOf(slotType == null ? new String[0] : slotType,
+				 capacity);
+	slotHandler = Arrays.copyOf(slotHandler == null ?
+				    new Runnable[0] : slotHandler, capacity);
+	slotIndex = Arrays.copyOf(slotIndex == null ? new int[0] : slotIndex,
+				  capacity);
+	slotGeneration = Arrays.copyOf(slotGeneration == null ?
+				       new int[0] : slotGeneration, capacity);
+	heap = Arrays.copyOf(heap == null ? new int[0] : heap, capacity);
+	freeSlots = Arrays.copyOf(freeSlots == null ? new int[0] : freeSlots,
+				  capacity);
+
+	for (int slot=capacity-1; slot>=oldCapacity; slot--) {
+	    slotIndex[slot] = -1;
+	    freeSlots[freeCount++] = slot;
 	}
+    }
+
+    private void freeSlot(int slot) {
+	slotType[slot] = null;
+	slotHandler[slot] = null;
+	slotIndex[slot] = -1;
+	slotGeneration[slot]++;
+
+	freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Test whether the interrupt in slot <i>a</i> should occur before the one
+     * in slot <i>b</i>. Interrupts scheduled for the same time occur in the
+     * order they were scheduled.
+     */
+    private boolean before(int a, int b) {
+	if (slotTime[a] != slotTime[b])
+	    return slotTime[a] < slotTime[b];
+	else
+	    return slotId[a] < slotId[b];
+    }
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+    private void removeAt(int index) {
+	int slot = heap[index];
+	slotIndex[slot] = -1;
+
+	numPending--;
+	if (index == numPending)
+	    return;
+
+	heap[index] = heap[numPending];
+	slotIndex[heap[index]] = index;
+
+	siftDown(index);
+	siftUp(index);
+    }
+
+    private void siftUp(int index) {
+	int slot = heap[index];
+
+	while (index > 0) {
+	    int parent = (index - 1) / 2;
+	    if (!before(slot, heap[parent]))
+		break;
+
+	    heap[index] = heap[parent];
+	    slotIndex[heap[index]] = index;
+	    index = parent;
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	heap[index] = slot;
+	slotIndex[slot] = index;
+    }
+
+    private void siftDown(int index) {
+	int slot = heap[index];
+
+	while (true) {
+	    int child = index*2 + 1;
+	    if (child >= numPending)
+		break;
+
+	    if (child+1 < numPending && before(heap[child+1], heap[child]))
+		child++;
+	    if (!before(heap[child], slot))
+		break;
+
+	    heap[index] = heap[child];
+	    slotIndex[heap[index]] = index;
+	    index = child;
+	}
 
-	private long id;
+	heap[index] = slot;
+	slotIndex[slot] = index;
     }
-    
+
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts are kept in a binary min-heap of slot numbers,
+     * ordered by time and then by the order they were scheduled. Each slot
+     * holds one pending interrupt in the parallel <tt>slot</tt> arrays;
+     * <tt>slotIndex</tt> gives a slot's position in the heap, or -1 if the
+     * slot is free. <tt>slotGeneration</tt> is bumped every time a slot is
+     * freed, so that a stale cancellation handle cannot cancel a later
+     * interrupt that reuses the slot.
+     */
+    private int[] heap;
+    private int numPending = 0;
+
+    private long[] slotTime;
+    private long[] slotId;
+    private String[] slotType;
+    private Runnable[] slotHandler;
+    private int[] slotIndex;
+    private int[] slotGeneration;
+
+    private int[] freeSlots;
+    private int freeCount = 0;
+
+    private static final int initialSlots = 16;
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long ticksUntilDue() {
+	    return Interrupt.this.ticksUntilDue();
+	}
+
+	public void advance(long userTicks) {
+	    Interrupt.this.advance(userTicks);
+	}
     }
 }
@@ -57,6 +57,29 @@ public final class Lib {
 	return random.nextInt(range);
     }
 
+    /**
+     * Return a random long between 0 and <i>range - 1</i>. A range that fits
+     * in an <tt>int</tt> draws the same value as <tt>random(int)</tt>.
+     *
+     * @param	range	a positive value specifying the number of possible
+     *			return values.
+     * @return	a random long in the specified range.
+     */
+    public static long random(long range) {
+	assertTrue(range > 0);
+	if (range <= Integer.MAX_VALUE)
+	    return random.nextInt((int) range);
+
+	// reject the values from the incomplete last copy of the range
+	long bits, value;
+	do {
+	    bits = random.nextLong() >>> 1;
+	    value = bits % range;
+	} while (bits - value + (range - 1) < 0);
+
+	return value;
+    }
+
     /**
      * Return a random double between 0.0 (inclusive) and 1.0 (exclusive).
      *
@@ -176,6 +199,15 @@ public final class Lib {
 	}
     }
 
+    /**
+     * Tests if any debug flags were enabled on the command line.
+     *
+     * @return	<tt>true</tt> if debug flags were enabled on the command line.
+     */
+    public static boolean debugEnabled() {
+	return (debugFlags != null);
+    }
+
     /** Debug flags specified on the command line. */
     private static boolean debugFlags[];
 
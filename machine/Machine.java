@@ -51,6 +51,10 @@ public final class Machine {
         TCB.givePrivilege(privilege);
         privilege.stats = stats;
 
+        // Formatter loads locale data through the service loader when it is
+        // first used, which Nachos threads are not allowed to do on Java 9+
+        String.format("%d", 0);
+
         securityManager.enable();
         createDevices();
         checkUserClasses();
@@ -66,16 +70,21 @@ public final class Machine {
 
     /**
      * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
-     * non-Nachos threads a chance to run.
+     * non-Nachos threads a chance to run. Virtual threads never keep an OS
+     * thread from other threads, so with them this does nothing.
      */
     public static void yield() {
-        Thread.yield();
+        if (!TCB.usesVirtualThreads())
+            Thread.yield();
     }
 
     /**
      * Terminate Nachos. Same as <tt>TCB.die()</tt>.
      */
     public static void terminate() {
+        if (processor != null && processor.profiler != null)
+            processor.profiler.print();
+
         TCB.die();
     }
 
@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +49,56 @@ public final class Processor {
         for (int i = 0; i < numUserRegisters; i++)
             registers[i] = 0;
 
-        mainMemory = new byte[pageSize * numPhysPages];
+        exceptions = new MipsException[exceptionNames.length];
+        for (int i = 0; i < exceptionNames.length; i++)
+            exceptions[i] = new MipsException(i);
+
+        if (Config.getBoolean("Processor.offHeapMemory", false)) {
+            mainMemory = null;
+            memory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+        } else {
+            mainMemory = new byte[pageSize * numPhysPages];
+            memory = ByteBuffer.wrap(mainMemory);
+        }
+        memory.order(ByteOrder.LITTLE_ENDIAN);
+        decodeCache = new Decoded[(pageSize / 4) * numPhysPages];
+
+        if (Config.getBoolean("Profiler.enabled", false))
+            profiler = new Profiler(privilege);
+        else
+            profiler = null;
+
+        String engine = Config.getString("Processor.engine", "interpreter");
+        if (engine.equals("block")) {
+            Lib.assertTrue(profiler == null,
+                    "the profiler requires Processor.engine = interpreter");
+
+            blockCache = new Block[(pageSize / 4) * numPhysPages];
+        } else {
+            Lib.assertTrue(engine.equals("interpreter"),
+                    "unknown Processor.engine: " + engine);
+            blockCache = null;
+        }
 
         if (usingTLB) {
+            tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+            Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
             translations = new TranslationEntry[tlbSize];
             for (int i = 0; i < tlbSize; i++)
                 translations[i] = new TranslationEntry();
+
+            if (Config.getBoolean("Processor.hashedTLB", false)) {
+                int numBuckets = 1;
+                while (numBuckets < tlbSize)
+                    numBuckets *= 2;
+
+                tlbBuckets = new int[numBuckets];
+                tlbChain = new int[tlbSize];
+                Arrays.fill(tlbBuckets, -1);
+                for (int i = 0; i < tlbSize; i++)
+                    linkTLBEntry(i);
+            }
         } else {
             translations = null;
         }
@@ -90,19 +138,77 @@ public final class Processor {
 
         Machine.autoGrader().runProcessor(privilege);
 
-        Instruction inst = new Instruction();
+        // without debug flags, use the interpreter with no tracing hooks
+        Instruction inst;
+        if (profiler != null)
+            inst = new ProfiledInstruction();
+        else if (Lib.debugEnabled())
+            inst = new Instruction();
+        else
+            inst = new QuietInstruction();
+
+        Lib.assertTrue(pendingTicks == 0);
+        tickBudget = privilege.interrupt.ticksUntilDue();
+
+        if (blockCache != null)
+            runBlocks(inst);
 
         while (true) {
             try {
                 inst.run();
             } catch (MipsException e) {
-                e.handle();
+                handleException(e);
+                continue;
             }
 
-            privilege.interrupt.tick(false);
+            tick();
         }
     }
 
+    /**
+     * Advance simulated time by one user tick for the instruction that just
+     * completed. Ticks are only counted here until an interrupt is due; the
+     * interrupt controller is then charged for all of them at once and
+     * dispatches the interrupt, exactly when per-instruction ticking would
+     * have.
+     */
+    private void tick() {
+        if (pendingTicks < tickBudget) {
+            pendingTicks++;
+            return;
+        }
+
+        flushTicks();
+        privilege.interrupt.tick(false);
+        tickBudget = privilege.interrupt.ticksUntilDue();
+    }
+
+    /**
+     * Charge the interrupt controller for any ticks counted by
+     * <tt>tick()</tt> but not yet added to the simulated time.
+     */
+    private void flushTicks() {
+        if (pendingTicks != 0) {
+            privilege.interrupt.advance(pendingTicks);
+            pendingTicks = 0;
+        }
+    }
+
+    /**
+     * Handle an exception raised by the instruction that just ran, and then
+     * advance simulated time for that instruction. The kernel's handler may
+     * read the time or schedule new interrupts, so the time is brought up to
+     * date first, and the tick budget is recomputed afterwards.
+     *
+     * @param e the exception raised by the instruction.
+     */
+    private void handleException(MipsException e) {
+        flushTicks();
+        e.handle();
+        privilege.interrupt.tick(false);
+        tickBudget = privilege.interrupt.ticksUntilDue();
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -173,6 +279,7 @@ public final class Processor {
         Lib.assertTrue(!usingTLB);
 
         this.translations = pageTable;
+        flushMicroTLB();
     }
 
     /**
@@ -213,7 +320,66 @@ public final class Processor {
         Lib.assertTrue(usingTLB);
         Lib.assertTrue(number >= 0 && number < tlbSize);
 
+        if (tlbBuckets != null)
+            unlinkTLBEntry(number);
+
         translations[number] = new TranslationEntry(entry);
+        flushMicroTLB();
+
+        if (tlbBuckets != null)
+            linkTLBEntry(number);
+    }
+
+    /**
+     * Add the specified TLB entry to the hash chain for its virtual page. The
+     * chains are kept sorted by TLB index, so that a hashed lookup finds the
+     * same entry as a linear search of the TLB would.
+     *
+     * @param number the index into the TLB.
+     */
+    private void linkTLBEntry(int number) {
+        int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+        int prev = -1, next = tlbBuckets[bucket];
+        while (next != -1 && next < number) {
+            prev = next;
+            next = tlbChain[next];
+        }
+
+        tlbChain[number] = next;
+        if (prev == -1)
+            tlbBuckets[bucket] = number;
+        else
+            tlbChain[prev] = number;
+    }
+
+    /**
+     * Remove the specified TLB entry from the hash chain for its virtual page.
+     *
+     * @param number the index into the TLB.
+     */
+    private void unlinkTLBEntry(int number) {
+        int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+        if (tlbBuckets[bucket] == number) {
+            tlbBuckets[bucket] = tlbChain[number];
+            return;
+        }
+
+        int prev = tlbBuckets[bucket];
+        while (tlbChain[prev] != number)
+            prev = tlbChain[prev];
+
+        tlbChain[prev] = tlbChain[number];
+    }
+
+    /**
+     * Forget the translations remembered by the micro-TLB. Called whenever
+     * the page table pointer or a TLB entry changes.
+     */
+    private void flushMicroTLB() {
+        fetchVPN = dataVPN = -1;
+        fetchEntry = dataEntry = null;
     }
 
     /**
@@ -229,13 +395,69 @@ public final class Processor {
     /**
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
+     * <p>
+     * <p>
+     * The caller may write anything through the array, including code, at
+     * any time. The processor checks every predecoded instruction and
+     * compiled block against the words in memory before using it.
+     * <p>
+     * There is no such array when <tt>Processor.offHeapMemory</tt> is set;
+     * use <tt>readPhysMem()</tt> and <tt>writePhysMem()</tt> instead, which
+     * work either way.
      *
      * @return the main memory array.
      */
     public byte[] getMemory() {
+        Lib.assertTrue(mainMemory != null,
+                "physical memory is off-heap; use readPhysMem()/writePhysMem()");
+
         return mainMemory;
     }
 
+    /**
+     * Copy bytes out of physical memory into the specified array.
+     *
+     * @param paddr  the first byte of physical memory to read.
+     * @param data   the array where the data will be stored.
+     * @param offset the first byte to write in the array.
+     * @param length the number of bytes to transfer.
+     */
+    public void readPhysMem(int paddr, byte[] data, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 &&
+                offset + length <= data.length);
+        Lib.assertTrue(paddr >= 0 && paddr + length <= memory.capacity());
+
+        if (mainMemory != null) {
+            System.arraycopy(mainMemory, paddr, data, offset, length);
+        } else {
+            ByteBuffer view = memory.duplicate();
+            view.position(paddr);
+            view.get(data, offset, length);
+        }
+    }
+
+    /**
+     * Copy bytes from the specified array into physical memory.
+     *
+     * @param paddr  the first byte of physical memory to write.
+     * @param data   the array containing the data to transfer.
+     * @param offset the first byte to transfer from the array.
+     * @param length the number of bytes to transfer.
+     */
+    public void writePhysMem(int paddr, byte[] data, int offset, int length) {
+        Lib.assertTrue(offset >= 0 && length >= 0 &&
+                offset + length <= data.length);
+        Lib.assertTrue(paddr >= 0 && paddr + length <= memory.capacity());
+
+        if (mainMemory != null) {
+            System.arraycopy(data, offset, mainMemory, paddr, length);
+        } else {
+            ByteBuffer view = memory.duplicate();
+            view.position(paddr);
+            view.put(data, offset, length);
+        }
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -277,6 +499,363 @@ public final class Processor {
         delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Return the predecoded instruction at the specified physical address,
+     * decoding and caching it first if the cache holds nothing for that
+     * address, or a different word than the one now in memory.
+     *
+     * @param paddr the physical address of the instruction.
+     * @return the predecoded instruction.
+     */
+    private Decoded decodeAt(int paddr) {
+        int value = memory.getInt(paddr);
+
+        Decoded decoded = decodeCache[paddr >>> 2];
+        if (decoded == null || decoded.value != value) {
+            decoded = new Decoded(value);
+            decodeCache[paddr >>> 2] = decoded;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * The main loop of the basic-block engine, used instead of the
+     * instruction-at-a-time loop in <tt>run()</tt> when
+     * <tt>Processor.engine</tt> is set to <tt>block</tt>. Never returns.
+     * <p>
+     * <p>
+     * Every instruction is still fetched through <tt>translate()</tt>, and
+     * still advances simulated time by one user tick, so exceptions and
+     * interrupts happen at exactly the same points as in the interpreter.
+     * The engine does not print disassembly; use the interpreter for that.
+     *
+     * @param inst the interpreter state used to run instructions that the
+     *             engine does not specialize.
+     */
+    private void runBlocks(Instruction inst) {
+        while (true) {
+            int vaddr = registers[regPC];
+            int paddr;
+
+            try {
+                paddr = translate(vaddr, 4, false, true);
+            } catch (MipsException e) {
+                handleException(e);
+                continue;
+            }
+
+            Block block = blockCache[paddr >>> 2];
+            if (block == null)
+                block = compileBlock(paddr, inst);
+
+            block.run(vaddr);
+        }
+    }
+
+    /**
+     * Compile the basic block starting at the specified physical address. A
+     * block ends with the delay slot of its first branch or jump, with any
+     * instruction that always raises an exception, or at the end of the
+     * physical page, whichever comes first.
+     *
+     * @param paddr the physical address of the first instruction.
+     * @param inst  the interpreter state used by unspecialized instructions.
+     * @return the new block, which has also been entered in the block cache.
+     */
+    private Block compileBlock(int paddr, Instruction inst) {
+        int ppn = paddr / pageSize;
+        int end = (ppn + 1) * pageSize;
+
+        int length = 0;
+        boolean inDelaySlot = false;
+        for (int addr = paddr; addr < end && length < maxBlockLength; addr += 4) {
+            Decoded decoded = decodeAt(addr);
+            length++;
+
+            if (inDelaySlot)
+                break;
+            if (Lib.test(Mips.BRANCH, decoded.flags))
+                inDelaySlot = true;
+            else if (decoded.operation == Mips.SYSCALL ||
+                    decoded.operation == Mips.UNIMPL ||
+                    decoded.operation == Mips.INVALID)
+                break;
+        }
+
+        Op[] ops = new Op[length];
+        int[] words = new int[length];
+        for (int i = 0; i < length; i++) {
+            Decoded decoded = decodeAt(paddr + i * 4);
+            ops[i] = compileOp(decoded, inst);
+            words[i] = decoded.value;
+        }
+
+        Block block = new Block(paddr, ops, words);
+        blockCache[paddr >>> 2] = block;
+
+        Lib.debug(dbgProcessor, "compiled block at paddr=0x" +
+                Lib.toHexString(paddr) + ", length=" + length);
+
+        return block;
+    }
+
+    /**
+     * Retire a register-to-register instruction: complete any delayed load,
+     * write the destination register, and advance the PC.
+     *
+     * @param dstReg the destination register.
+     * @param value  the value to write to the destination register.
+     */
+    private void retire(int dstReg, int value) {
+        finishLoad();
+
+        if (dstReg != 0)
+            registers[dstReg] = value;
+
+        advancePC(registers[regNextPC] + 4);
+    }
+
+    /**
+     * Retire a branch or jump: complete any delayed load and transfer control
+     * to the specified target after the delay slot.
+     *
+     * @param target the value of the nextPC register after the delay slot.
+     */
+    private void retireBranch(int target) {
+        finishLoad();
+        advancePC(target);
+    }
+
+    /**
+     * Specialize a single predecoded instruction. Common operations become an
+     * <tt>Op</tt> with their register numbers and immediates fixed in place;
+     * everything else falls back to the interpreter. Each specialized
+     * operation evaluates its operands, completes delayed loads, writes its
+     * result and advances the PC in the same order the interpreter does.
+     *
+     * @param d    the predecoded instruction.
+     * @param inst the interpreter state to use for the fallback.
+     * @return the compiled operation.
+     */
+    private Op compileOp(final Decoded d, final Instruction inst) {
+        final int rs = d.rs, rt = d.rt, rd = d.rd, sh = d.sh;
+        final int imm = d.imm, dstReg = d.dstReg, size = d.size;
+        final boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+        final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+        final boolean link = Lib.test(Mips.LINK, d.flags);
+
+        Op interpreted = new Op() {
+            void run() throws MipsException {
+                inst.run(d);
+            }
+        };
+
+        if (Lib.test(Mips.OVERFLOW, d.flags))
+            return interpreted;
+
+        switch (d.operation) {
+            case Mips.ADD:
+                if (srcImm)
+                    return new Op() {
+                        void run() {
+                            retire(dstReg, registers[rs] + imm);
+                        }
+                    };
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[rs] + registers[rt]);
+                    }
+                };
+
+            case Mips.SUB:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[rs] - registers[rt]);
+                    }
+                };
+
+            case Mips.SLT:
+                if (unsigned)
+                    return new Op() {
+                        void run() {
+                            long src1 = registers[rs] & 0xFFFFFFFFL;
+                            long src2 = (srcImm ? imm : registers[rt]) &
+                                    0xFFFFFFFFL;
+                            retire(dstReg, (src1 < src2) ? 1 : 0);
+                        }
+                    };
+                return new Op() {
+                    void run() {
+                        int src2 = srcImm ? imm : registers[rt];
+                        retire(dstReg, (registers[rs] < src2) ? 1 : 0);
+                    }
+                };
+
+            case Mips.AND:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[rs] &
+                                (srcImm ? imm : registers[rt]));
+                    }
+                };
+            case Mips.OR:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[rs] |
+                                (srcImm ? imm : registers[rt]));
+                    }
+                };
+            case Mips.XOR:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[rs] ^
+                                (srcImm ? imm : registers[rt]));
+                    }
+                };
+            case Mips.NOR:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, ~(registers[rs] | registers[rt]));
+                    }
+                };
+            case Mips.LUI:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, imm << 16);
+                    }
+                };
+
+            case Mips.SLL:
+            case Mips.SRA:
+            case Mips.SRL:
+                final boolean srcShamt = Lib.test(Mips.SRC1SH, d.flags);
+                final int operation = d.operation;
+                return new Op() {
+                    void run() {
+                        int amount = (srcShamt ? sh : registers[rs]) & 0x1F;
+                        long src2 = registers[rt];
+
+                        // same arithmetic as Instruction.execute()
+                        long dst;
+                        if (operation == Mips.SLL)
+                            dst = src2 << amount;
+                        else if (operation == Mips.SRA)
+                            dst = src2 >> amount;
+                        else
+                            dst = src2 >>> amount;
+
+                        retire(dstReg, (int) dst);
+                    }
+                };
+
+            case Mips.MFLO:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[regLo]);
+                    }
+                };
+            case Mips.MFHI:
+                return new Op() {
+                    void run() {
+                        retire(dstReg, registers[regHi]);
+                    }
+                };
+
+            case Mips.LOAD:
+                return new Op() {
+                    void run() throws MipsException {
+                        int value = inst.load(registers[rs] + imm, size);
+
+                        if (!unsigned)
+                            value = Lib.extend(value, 0, size * 8);
+
+                        delayedLoad(dstReg, value, 0xFFFFFFFF);
+                        advancePC(registers[regNextPC] + 4);
+                    }
+                };
+
+            case Mips.STORE:
+                return new Op() {
+                    void run() throws MipsException {
+                        inst.store(registers[rs] + imm, size, registers[rt]);
+                        finishLoad();
+                        advancePC(registers[regNextPC] + 4);
+                    }
+                };
+
+            case Mips.BEQ:
+            case Mips.BNE:
+            case Mips.BLEZ:
+            case Mips.BGTZ:
+            case Mips.BLTZ:
+            case Mips.BGEZ:
+                if (link)
+                    return interpreted;
+
+                final int offset = d.branchOffset;
+                final int condition = d.operation;
+                return new Op() {
+                    void run() {
+                        int src1 = registers[rs];
+                        boolean taken;
+
+                        switch (condition) {
+                            case Mips.BEQ:
+                                taken = (src1 == registers[rt]);
+                                break;
+                            case Mips.BNE:
+                                taken = (src1 != registers[rt]);
+                                break;
+                            case Mips.BLEZ:
+                                taken = (src1 <= 0);
+                                break;
+                            case Mips.BGTZ:
+                                taken = (src1 > 0);
+                                break;
+                            case Mips.BLTZ:
+                                taken = (src1 < 0);
+                                break;
+                            default:
+                                taken = (src1 >= 0);
+                                break;
+                        }
+
+                        retireBranch(registers[regNextPC] +
+                                (taken ? offset : 4));
+                    }
+                };
+
+            case Mips.JUMP:
+                if (d.format == Mips.JFMT) {
+                    final int target = d.target << 2;
+                    return new Op() {
+                        void run() {
+                            int nextPC = registers[regNextPC];
+
+                            retireBranch((nextPC & 0xF0000000) | target);
+                            if (link)
+                                registers[regRA] = nextPC + 4;
+                        }
+                    };
+                }
+                return new Op() {
+                    void run() {
+                        int nextPC = registers[regNextPC];
+                        int target = registers[rs];
+
+                        finishLoad();
+                        if (link && dstReg != 0)
+                            registers[dstReg] = nextPC + 4;
+                        advancePC(target);
+                    }
+                };
+
+            default:
+                return interpreted;
+        }
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -292,60 +871,93 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
             throws MipsException {
+        return translate(vaddr, size, writing, false);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, as above.
+     * <p>
+     * <p>
+     * The last translation used to fetch an instruction and the last one used
+     * for data are remembered in a two-entry micro-TLB, so that consecutive
+     * references to the same page skip the page table or TLB lookup. TLB
+     * entries can only change through <tt>writeTLBEntry()</tt>, which flushes
+     * the micro-TLB, but page table entries belong to the kernel and may be
+     * changed at any time, so a remembered page table entry is checked again
+     * before it is used.
+     *
+     * @param vaddr    the virtual address to translate.
+     * @param size     the size of the memory reference (must be 1, 2, or 4).
+     * @param writing  <tt>true</tt> if the memory reference is a write.
+     * @param fetching <tt>true</tt> if the memory reference is an instruction
+     *                 fetch.
+     * @return the physical address.
+     * @throws MipsException if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+                          boolean fetching) throws MipsException {
         if (Lib.test(dbgProcessor))
             System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
                     + (writing ? ", write" : ", read..."));
 
+        int paddr = translateQuiet(vaddr, size, writing, fetching);
+
+        if (Lib.test(dbgProcessor))
+            System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+        return paddr;
+    }
+
+    /**
+     * Translate a virtual address into a physical address, as above, but
+     * without tracing the translation. Only the exception paths print debug
+     * messages.
+     *
+     * @param vaddr    the virtual address to translate.
+     * @param size     the size of the memory reference (must be 1, 2, or 4).
+     * @param writing  <tt>true</tt> if the memory reference is a write.
+     * @param fetching <tt>true</tt> if the memory reference is an instruction
+     *                 fetch.
+     * @return the physical address.
+     * @throws MipsException if a translation error occurred.
+     */
+    private int translateQuiet(int vaddr, int size, boolean writing,
+                               boolean fetching) throws MipsException {
         // check alignment
         if ((vaddr & (size - 1)) != 0) {
             Lib.debug(dbgProcessor, "\t\talignment error");
-            throw new MipsException(exceptionAddressError, vaddr);
+            throw exception(exceptionAddressError, vaddr);
         }
 
         // calculate virtual page number and offset from the virtual address
         int vpn = pageFromAddress(vaddr);
         int offset = offsetFromAddress(vaddr);
 
-        TranslationEntry entry = null;
+        TranslationEntry entry = fetching ? fetchEntry : dataEntry;
 
-        // if not using a TLB, then the vpn is an index into the table
-        if (!usingTLB) {
-            if (translations == null || vpn >= translations.length ||
-                    translations[vpn] == null ||
-                    !translations[vpn].valid) {
-                privilege.stats.numPageFaults++;
-                Lib.debug(dbgProcessor, "\t\tpage fault");
-                throw new MipsException(exceptionPageFault, vaddr);
-            }
+        if (vpn != (fetching ? fetchVPN : dataVPN) || (!usingTLB &&
+                (translations[vpn] != entry || !entry.valid))) {
+            entry = lookUpEntry(vaddr, vpn);
 
-            entry = translations[vpn];
-        }
-        // else, look through all TLB entries for matching vpn
-        else {
-            for (int i = 0; i < tlbSize; i++) {
-                if (translations[i].valid && translations[i].vpn == vpn) {
-                    entry = translations[i];
-                    break;
-                }
-            }
-            if (entry == null) {
-                privilege.stats.numTLBMisses++;
-                Lib.debug(dbgProcessor, "\t\tTLB miss");
-                throw new MipsException(exceptionTLBMiss, vaddr);
+            if (fetching) {
+                fetchVPN = vpn;
+                fetchEntry = entry;
+            } else {
+                dataVPN = vpn;
+                dataEntry = entry;
             }
         }
 
         // check if trying to write a read-only page
         if (entry.readOnly && writing) {
             Lib.debug(dbgProcessor, "\t\tread-only exception");
-            throw new MipsException(exceptionReadOnly, vaddr);
+            throw exception(exceptionReadOnly, vaddr);
         }
 
         // check if physical page number is out of range
         int ppn = entry.ppn;
         if (ppn < 0 || ppn >= numPhysPages) {
             Lib.debug(dbgProcessor, "\t\tbad ppn");
-            throw new MipsException(exceptionBusError, vaddr);
+            throw exception(exceptionBusError, vaddr);
         }
 
         // set used and dirty bits as appropriate
@@ -353,11 +965,82 @@ public final class Processor {
         if (writing)
             entry.dirty = true;
 
-        int paddr = (ppn * pageSize) + offset;
+        return (ppn * pageSize) + offset;
+    }
 
-        if (Lib.test(dbgProcessor))
-            System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-        return paddr;
+    /**
+     * Find the valid translation entry for a virtual page, in the page table
+     * or in the TLB.
+     *
+     * @param vaddr the virtual address being translated.
+     * @param vpn   the virtual page number of <i>vaddr</i>.
+     * @return the translation entry.
+     * @throws MipsException if there is no valid entry for the page.
+     */
+    private TranslationEntry lookUpEntry(int vaddr, int vpn)
+            throws MipsException {
+        // if not using a TLB, then the vpn is an index into the table
+        if (!usingTLB) {
+            if (translations == null || vpn >= translations.length ||
+                    translations[vpn] == null ||
+                    !translations[vpn].valid) {
+                privilege.stats.numPageFaults++;
+                Lib.debug(dbgProcessor, "\t\tpage fault");
+                throw exception(exceptionPageFault, vaddr);
+            }
+
+            return translations[vpn];
+        }
+
+        // else, look through the TLB entries for matching vpn
+        if (tlbBuckets != null) {
+            for (int i = tlbBuckets[vpn & (tlbBuckets.length - 1)]; i != -1;
+                 i = tlbChain[i]) {
+                if (translations[i].valid && translations[i].vpn == vpn)
+                    return translations[i];
+            }
+        } else {
+            for (int i = 0; i < tlbSize; i++) {
+                if (translations[i].valid && translations[i].vpn == vpn)
+                    return translations[i];
+            }
+        }
+
+        privilege.stats.numTLBMisses++;
+        Lib.debug(dbgProcessor, "\t\tTLB miss");
+        throw exception(exceptionTLBMiss, vaddr);
+    }
+
+    /**
+     * Return the exception object for the specified cause, ready to throw.
+     * There is one preallocated exception per cause, so raising one never
+     * allocates or captures a stack trace. <tt>MipsException.handle()</tt>
+     * reads it before running the kernel's handler, so it may safely be
+     * thrown again from another thread while that handler runs.
+     *
+     * @param cause the cause of the exception (an <tt>exception<i>*</i></tt>
+     *              constant).
+     * @return the exception.
+     */
+    private MipsException exception(int cause) {
+        MipsException e = exceptions[cause];
+        e.hasBadVAddr = false;
+        return e;
+    }
+
+    /**
+     * Return the exception object for the specified cause, as above, with
+     * the specified bad virtual address.
+     *
+     * @param cause    the cause of the exception.
+     * @param badVAddr the virtual address that caused the exception.
+     * @return the exception.
+     */
+    private MipsException exception(int cause, int badVAddr) {
+        MipsException e = exceptions[cause];
+        e.hasBadVAddr = true;
+        e.badVAddr = badVAddr;
+        return e;
     }
 
     /**
@@ -376,8 +1059,7 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-                size);
+        int value = readPhysWord(translate(vaddr, size, false), size);
 
         if (Lib.test(dbgProcessor))
             System.out.println("\t\tvalue read=0x" +
@@ -386,6 +1068,21 @@ public final class Processor {
         return value;
     }
 
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+     * without tracing the access.
+     *
+     * @param vaddr the virtual address to read from.
+     * @param size  the number of bytes to read (1, 2, or 4).
+     * @return the value read.
+     * @throws MipsException if a translation error occurred.
+     */
+    private int readMemQuiet(int vaddr, int size) throws MipsException {
+        Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+        return readPhysWord(translateQuiet(vaddr, size, false, false), size);
+    }
+
     /**
      * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
      * starting at <i>vaddr</i>.
@@ -404,8 +1101,63 @@ public final class Processor {
 
         Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-        Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-                value);
+        writePhysWord(translate(vaddr, size, true), size, value);
+    }
+
+    /**
+     * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
+     * starting at <i>vaddr</i>, without tracing the access.
+     *
+     * @param vaddr the virtual address to write to.
+     * @param size  the number of bytes to write (1, 2, or 4).
+     * @param value the value to store.
+     * @throws MipsException if a translation error occurred.
+     */
+    private void writeMemQuiet(int vaddr, int size, int value)
+            throws MipsException {
+        Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+        writePhysWord(translateQuiet(vaddr, size, true, false), size, value);
+    }
+
+    /**
+     * Load a value from physical memory. Like <tt>Lib.bytesToInt()</tt>, a
+     * byte or halfword is sign-extended.
+     *
+     * @param paddr the physical address to read from.
+     * @param size  the number of bytes to read (1, 2, or 4).
+     * @return the value read.
+     */
+    private int readPhysWord(int paddr, int size) {
+        switch (size) {
+            case 1:
+                return memory.get(paddr);
+            case 2:
+                return memory.getShort(paddr);
+            default:
+                return memory.getInt(paddr);
+        }
+    }
+
+    /**
+     * Store a value into physical memory.
+     *
+     * @param paddr the physical address to write to.
+     * @param size  the number of bytes to write (1, 2, or 4).
+     * @param value the value to store.
+     */
+    private void writePhysWord(int paddr, int size, int value) {
+        switch (size) {
+            case 1:
+                memory.put(paddr, (byte) value);
+                break;
+            case 2:
+                memory.putShort(paddr, (short) value);
+                break;
+            default:
+                memory.putInt(paddr, value);
+                break;
+        }
     }
 
     /**
@@ -593,6 +1345,17 @@ public final class Processor {
      */
     private int loadValue;
 
+    /**
+     * The number of user ticks executed but not yet charged to the interrupt
+     * controller.
+     */
+    private long pendingTicks = 0;
+    /**
+     * The number of user ticks that can be counted in
+     * <tt>pendingTicks</tt> before an interrupt is due.
+     */
+    private long tickBudget = 0;
+
     /**
      * <tt>true</tt> if using a software-managed TLB.
      */
@@ -606,6 +1369,30 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * For a hashed TLB, the index of the first TLB entry in each hash chain,
+     * or <tt>-1</tt> if the chain is empty; <tt>null</tt> if the TLB is
+     * searched linearly.
+     */
+    private int[] tlbBuckets = null;
+    /**
+     * For a hashed TLB, the index of the next TLB entry in the same hash
+     * chain as each entry, or <tt>-1</tt> at the end of the chain.
+     */
+    private int[] tlbChain = null;
+
+    /**
+     * The virtual page and translation entry of the last instruction fetch,
+     * or <tt>-1</tt> and <tt>null</tt> if not known.
+     */
+    private int fetchVPN = -1;
+    private TranslationEntry fetchEntry = null;
+    /**
+     * The virtual page and translation entry of the last data reference, or
+     * <tt>-1</tt> and <tt>null</tt> if not known.
+     */
+    private int dataVPN = -1;
+    private TranslationEntry dataEntry = null;
 
     /**
      * Size of a page, in bytes.
@@ -620,14 +1407,45 @@ public final class Processor {
      */
     private int numPhysPages;
     /**
-     * Main memory for user programs.
+     * Main memory for user programs, or <tt>null</tt> if it is off-heap.
      */
     private byte[] mainMemory;
+    /**
+     * A little-endian view of main memory, through which the processor makes
+     * every access, so that a word is loaded or stored in one operation. It
+     * wraps <tt>mainMemory</tt>, or is a direct buffer outside the Java heap
+     * if <tt>Processor.offHeapMemory</tt> is set.
+     */
+    private ByteBuffer memory;
+    /**
+     * Predecoded instructions, indexed by physical word address. An entry is
+     * <tt>null</tt> until the word at that address is first fetched, and is
+     * replaced whenever a fetch finds a different word there.
+     */
+    private Decoded[] decodeCache;
 
     /**
      * The kernel exception handler, called on every user exception.
      */
     private Runnable exceptionHandler = null;
+    /**
+     * The preallocated exception for each cause, indexed by cause.
+     */
+    private MipsException[] exceptions;
+    /**
+     * The execution profiler, or <tt>null</tt> if profiling is disabled.
+     */
+    final Profiler profiler;
+
+    /**
+     * Compiled basic blocks, indexed by the physical word address of their
+     * first instruction, or <tt>null</tt> if the interpreter is in use.
+     */
+    private Block[] blockCache;
+    /**
+     * The maximum number of instructions in a compiled basic block.
+     */
+    private static final int maxBlockLength = 64;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
@@ -641,18 +1459,14 @@ public final class Processor {
 
     private class MipsException extends Exception {
         public MipsException(int cause) {
+            // preallocated and rethrown, so there is no stack trace to record
+            super(null, null, false, false);
+
             Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
             this.cause = cause;
         }
 
-        public MipsException(int cause, int badVAddr) {
-            this(cause);
-
-            hasBadVAddr = true;
-            this.badVAddr = badVAddr;
-        }
-
         public void handle() {
             writeRegister(regCause, cause);
 
@@ -674,7 +1488,8 @@ public final class Processor {
         }
 
         private boolean hasBadVAddr = false;
-        private int cause, badVAddr;
+        private final int cause;
+        private int badVAddr;
     }
 
     private class Instruction {
@@ -686,88 +1501,91 @@ public final class Processor {
             writeBack();
         }
 
+        /**
+         * Execute an instruction that has already been fetched by the basic
+         * block engine.
+         *
+         * @param d the predecoded instruction.
+         */
+        public void run(Decoded d) throws MipsException {
+            decoded = d;
+            value = d.value;
+
+            decode();
+            execute();
+            writeBack();
+        }
+
         private boolean test(int flag) {
             return Lib.test(flag, flags);
         }
 
-        private void fetch() throws MipsException {
+        void fetch() throws MipsException {
             if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
                     Lib.test(dbgFullDisassemble))
                 System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
                         + "\t");
 
-            value = readMem(registers[regPC], 4);
+            if (Lib.test(dbgProcessor))
+                System.out.println("\treadMem vaddr=0x" +
+                        Lib.toHexString(registers[regPC]) + ", size=4");
+
+            int paddr = translate(registers[regPC], 4, false, true);
+
+            decoded = decodeAt(paddr);
+            value = decoded.value;
+
+            if (Lib.test(dbgProcessor))
+                System.out.println("\t\tvalue read=0x" +
+                        Lib.toHexString(value, 8));
         }
 
-        private void decode() {
-            op = Lib.extract(value, 26, 6);
-            rs = Lib.extract(value, 21, 5);
-            rt = Lib.extract(value, 16, 5);
-            rd = Lib.extract(value, 11, 5);
-            sh = Lib.extract(value, 6, 5);
-            func = Lib.extract(value, 0, 6);
-            target = Lib.extract(value, 0, 26);
-            imm = Lib.extend(value, 0, 16);
+        void decode() {
+            unpack();
 
-            Mips info;
-            switch (op) {
-                case 0:
-                    info = Mips.specialtable[func];
-                    break;
-                case 1:
-                    info = Mips.regimmtable[rt];
-                    break;
-                default:
-                    info = Mips.optable[op];
-                    break;
-            }
+            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+                print();
+        }
 
-            operation = info.operation;
-            name = info.name;
-            format = info.format;
-            flags = info.flags;
+        /**
+         * Copy the fields of the predecoded instruction into this state, and
+         * compute the operands that depend on the registers.
+         */
+        void unpack() {
+            Decoded d = decoded;
+
+            op = d.op;
+            rs = d.rs;
+            rt = d.rt;
+            rd = d.rd;
+            sh = d.sh;
+            func = d.func;
+            target = d.target;
+            imm = d.imm;
+
+            operation = d.operation;
+            name = d.name;
+            format = d.format;
+            flags = d.flags;
+            size = d.size;
+            dstReg = d.dstReg;
 
             mask = 0xFFFFFFFF;
             branch = true;
 
-            // get memory access size
-            if (test(Mips.SIZEB))
-                size = 1;
-            else if (test(Mips.SIZEH))
-                size = 2;
-            else if (test(Mips.SIZEW))
-                size = 4;
-            else
-                size = 0;
-
             // get nextPC
             nextPC = registers[regNextPC] + 4;
 
-            // get dstReg
-            if (test(Mips.DSTRA))
-                dstReg = regRA;
-            else if (format == Mips.IFMT)
-                dstReg = rt;
-            else if (format == Mips.RFMT)
-                dstReg = rd;
-            else
-                dstReg = -1;
-
             // get jtarget
             if (format == Mips.RFMT)
                 jtarget = registers[rs];
             else if (format == Mips.IFMT)
-                jtarget = registers[regNextPC] + (imm << 2);
+                jtarget = registers[regNextPC] + d.branchOffset;
             else if (format == Mips.JFMT)
                 jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
             else
                 jtarget = -1;
 
-            // get imm
-            if (test(Mips.UNSIGNED)) {
-                imm &= 0xFFFF;
-            }
-
             // get addr
             addr = registers[rs] + imm;
 
@@ -787,9 +1605,6 @@ public final class Processor {
                 src1 &= 0xFFFFFFFFL;
                 src2 &= 0xFFFFFFFFL;
             }
-
-            if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-                print();
         }
 
         private void print() {
@@ -914,7 +1729,31 @@ public final class Processor {
                 System.out.print("\n");
         }
 
-        private void execute() throws MipsException {
+        /**
+         * Read memory on behalf of the instruction being executed.
+         *
+         * @param vaddr the virtual address to read from.
+         * @param size  the number of bytes to read (1, 2, or 4).
+         * @return the value read.
+         * @throws MipsException if a translation error occurred.
+         */
+        int load(int vaddr, int size) throws MipsException {
+            return readMem(vaddr, size);
+        }
+
+        /**
+         * Write memory on behalf of the instruction being executed.
+         *
+         * @param vaddr the virtual address to write to.
+         * @param size  the number of bytes to write (1, 2, or 4).
+         * @param value the value to store.
+         * @throws MipsException if a translation error occurred.
+         */
+        void store(int vaddr, int size, int value) throws MipsException {
+            writeMem(vaddr, size, value);
+        }
+
+        void execute() throws MipsException {
             int value;
             int preserved;
 
@@ -937,7 +1776,7 @@ public final class Processor {
                         if (registers[regLo] * src2 + registers[regHi] != src1)
                             throw new ArithmeticException();
                     } catch (ArithmeticException e) {
-                        throw new MipsException(exceptionOverflow);
+                        throw exception(exceptionOverflow);
                     }
                     break;
 
@@ -1007,10 +1846,10 @@ public final class Processor {
                     break;
 
                 case Mips.SYSCALL:
-                    throw new MipsException(exceptionSyscall);
+                    throw exception(exceptionSyscall);
 
                 case Mips.LOAD:
-                    value = readMem(addr, size);
+                    value = load(addr, size);
 
                     if (!test(Mips.UNSIGNED))
                         dst = Lib.extend(value, 0, size * 8);
@@ -1020,7 +1859,7 @@ public final class Processor {
                     break;
 
                 case Mips.LWL:
-                    value = readMem(addr & ~0x3, 4);
+                    value = load(addr & ~0x3, 4);
 
                     // LWL shifts the input left so the addressed byte is highest
                     preserved = (3 - (addr & 0x3)) * 8;        // number of bits to preserve
@@ -1031,7 +1870,7 @@ public final class Processor {
                     break;
 
                 case Mips.LWR:
-                    value = readMem(addr & ~0x3, 4);
+                    value = load(addr & ~0x3, 4);
 
                     // LWR shifts the input right so the addressed byte is lowest
                     preserved = (addr & 0x3) * 8;        // number of bits to preserve
@@ -1042,11 +1881,11 @@ public final class Processor {
                     break;
 
                 case Mips.STORE:
-                    writeMem(addr, size, (int) src2);
+                    store(addr, size, (int) src2);
                     break;
 
                 case Mips.SWL:
-                    value = readMem(addr & ~0x3, 4);
+                    value = load(addr & ~0x3, 4);
 
                     // SWL shifts highest order byte into the addressed position
                     preserved = (3 - (addr & 0x3)) * 8;
@@ -1056,11 +1895,11 @@ public final class Processor {
                     // merge values
                     dst = (dst & mask) | (value & ~mask);
 
-                    writeMem(addr & ~0x3, 4, (int) dst);
+                    store(addr & ~0x3, 4, (int) dst);
                     break;
 
                 case Mips.SWR:
-                    value = readMem(addr & ~0x3, 4);
+                    value = load(addr & ~0x3, 4);
 
                     // SWR shifts the lowest order byte into the addressed position
                     preserved = (addr & 0x3) * 8;
@@ -1070,24 +1909,43 @@ public final class Processor {
                     // merge values
                     dst = (dst & mask) | (value & ~mask);
 
-                    writeMem(addr & ~0x3, 4, (int) dst);
+                    store(addr & ~0x3, 4, (int) dst);
                     break;
 
                 case Mips.UNIMPL:
                     System.err.println("Warning: encountered unimplemented inst");
 
                 case Mips.INVALID:
-                    throw new MipsException(exceptionIllegalInstruction);
+                    throw exception(exceptionIllegalInstruction);
 
                 default:
                     Lib.assertNotReached();
             }
         }
 
-        private void writeBack() throws MipsException {
+        void writeBack() throws MipsException {
+            commit();
+
+            if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+                if (Lib.test(dbgFullDisassemble)) {
+                    System.out.print("#0x" + Lib.toHexString((int) dst));
+                    if (test(Mips.DELAYEDLOAD))
+                        System.out.print(" (delayed load)");
+                }
+            }
+
+            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
+                    Lib.test(dbgFullDisassemble))
+                System.out.print("\n");
+        }
+
+        /**
+         * Write the result of the instruction and advance the PC.
+         */
+        void commit() throws MipsException {
             // if instruction is signed, but carry bit !+ sign bit, throw
             if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-                throw new MipsException(exceptionOverflow);
+                throw exception(exceptionOverflow);
 
             if (test(Mips.DELAYEDLOAD))
                 delayedLoad(dstReg, (int) dst, mask);
@@ -1100,26 +1958,15 @@ public final class Processor {
             if (test(Mips.DST) && dstReg != 0)
                 registers[dstReg] = (int) dst;
 
-            if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-                if (Lib.test(dbgFullDisassemble)) {
-                    System.out.print("#0x" + Lib.toHexString((int) dst));
-                    if (test(Mips.DELAYEDLOAD))
-                        System.out.print(" (delayed load)");
-                }
-            }
-
             if (test(Mips.BRANCH) && branch) {
                 nextPC = jtarget;
             }
 
             advancePC(nextPC);
-
-            if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-                    Lib.test(dbgFullDisassemble))
-                System.out.print("\n");
         }
 
         // state used to execute a single instruction
+        Decoded decoded;
         int value, op, rs, rt, rd, sh, func, target, imm;
         int operation, format, flags;
         String name;
@@ -1131,6 +1978,199 @@ public final class Processor {
         boolean branch;
     }
 
+    /**
+     * The interpreter used when no debug flags are set. It executes exactly
+     * what <tt>Instruction</tt> does, but fetches, decodes, accesses memory
+     * and writes back without any of the tracing hooks, so the main loop runs
+     * no debug tests at all.
+     */
+    private final class QuietInstruction extends Instruction {
+        void fetch() throws MipsException {
+            decoded = decodeAt(translateQuiet(registers[regPC], 4, false,
+                    true));
+            value = decoded.value;
+        }
+
+        void decode() {
+            unpack();
+        }
+
+        int load(int vaddr, int size) throws MipsException {
+            return readMemQuiet(vaddr, size);
+        }
+
+        void store(int vaddr, int size, int value) throws MipsException {
+            writeMemQuiet(vaddr, size, value);
+        }
+
+        void writeBack() throws MipsException {
+            commit();
+        }
+    }
+
+    /**
+     * The interpreter used when the profiler is enabled. It counts each
+     * instruction that is successfully fetched.
+     */
+    private final class ProfiledInstruction extends Instruction {
+        public void run() throws MipsException {
+            fetch();
+            profiler.count(registers[regPC]);
+            decode();
+            execute();
+            writeBack();
+        }
+    }
+
+    /**
+     * A compiled basic block: a run of consecutive instructions within one
+     * physical page, each specialized into an <tt>Op</tt>, and the words they
+     * were compiled from.
+     */
+    private class Block {
+        Block(int paddr, Op[] ops, int[] words) {
+            this.paddr = paddr;
+            this.ops = ops;
+            this.words = words;
+        }
+
+        /**
+         * Execute this block, starting at its first instruction, until control
+         * leaves the block. Control leaves when the PC no longer points at the
+         * next instruction of the block, when that instruction now maps to a
+         * different physical address, when any instruction raises an
+         * exception, or when the word in memory is no longer the one the
+         * instruction was compiled from. In the last case the block is also
+         * dropped from the block cache, so that it is compiled again.
+         *
+         * @param vaddr the virtual address of the first instruction.
+         */
+        void run(int vaddr) {
+            for (int i = 0; ; ) {
+                if (memory.getInt(paddr + i * 4) != words[i]) {
+                    if (blockCache[paddr >>> 2] == this)
+                        blockCache[paddr >>> 2] = null;
+                    return;
+                }
+
+                try {
+                    ops[i].run();
+                } catch (MipsException e) {
+                    handleException(e);
+                    return;
+                }
+
+                tick();
+
+                if (++i == ops.length)
+                    return;
+
+                if (registers[regPC] != vaddr + i * 4)
+                    return;
+
+                try {
+                    if (translate(registers[regPC], 4, false, true) !=
+                            paddr + i * 4)
+                        return;
+                } catch (MipsException e) {
+                    handleException(e);
+                    return;
+                }
+            }
+        }
+
+        final int paddr;
+        final Op[] ops;
+        final int[] words;
+    }
+
+    /**
+     * A single instruction of a compiled basic block. Running an
+     * <tt>Op</tt> has exactly the same effect on the processor as running
+     * the instruction through <tt>Instruction.run()</tt>, except that the
+     * instruction has already been fetched.
+     */
+    private abstract class Op {
+        abstract void run() throws MipsException;
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * and not on the state of the registers. These are computed once, the
+     * first time a word is fetched, and then reused by every later fetch of
+     * the same physical word for as long as it still holds that word.
+     */
+    private static class Decoded {
+        Decoded(int value) {
+            this.value = value;
+
+            op = Lib.extract(value, 26, 6);
+            rs = Lib.extract(value, 21, 5);
+            rt = Lib.extract(value, 16, 5);
+            rd = Lib.extract(value, 11, 5);
+            sh = Lib.extract(value, 6, 5);
+            func = Lib.extract(value, 0, 6);
+            target = Lib.extract(value, 0, 26);
+
+            int imm = Lib.extend(value, 0, 16);
+
+            Mips info;
+            switch (op) {
+                case 0:
+                    info = Mips.specialtable[func];
+                    break;
+                case 1:
+                    info = Mips.regimmtable[rt];
+                    break;
+                default:
+                    info = Mips.optable[op];
+                    break;
+            }
+
+            this.info = info;
+            operation = info.operation;
+            name = info.name;
+            format = info.format;
+            flags = info.flags;
+
+            // get memory access size
+            if (Lib.test(Mips.SIZEB, flags))
+                size = 1;
+            else if (Lib.test(Mips.SIZEH, flags))
+                size = 2;
+            else if (Lib.test(Mips.SIZEW, flags))
+                size = 4;
+            else
+                size = 0;
+
+            // get dstReg
+            if (Lib.test(Mips.DSTRA, flags))
+                dstReg = regRA;
+            else if (format == Mips.IFMT)
+                dstReg = rt;
+            else if (format == Mips.RFMT)
+                dstReg = rd;
+            else
+                dstReg = -1;
+
+            // branch targets use the sign-extended immediate
+            branchOffset = imm << 2;
+
+            // get imm
+            if (Lib.test(Mips.UNSIGNED, flags))
+                imm &= 0xFFFF;
+
+            this.imm = imm;
+        }
+
+        final int value, op, rs, rt, rd, sh, func, target, imm;
+        final int branchOffset;
+        final Mips info;
+        final int operation, format, flags;
+        final String name;
+        final int size, dstReg;
+    }
+
     private static class Mips {
         Mips() {
         }
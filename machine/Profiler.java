@@ -0,0 +1,237 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An execution profiler for user programs. When <tt>Profiler.enabled</tt> is
+ * set, the processor counts how many times the instruction at each virtual
+ * address is executed, and when Nachos terminates the profiler prints the
+ * most frequently executed addresses, attributed to the COFF sections and
+ * procedures of the programs that were loaded.
+ * <p>
+ * <p>
+ * If <tt>Profiler.collapsedFile</tt> is set, the profile is also written to
+ * that file in the collapsed-stack format read by flame graph tools, with one
+ * line per procedure of the form <tt>program;section;procedure count</tt>.
+ * The processor does not track calls, so there is no deeper stack.
+ * <p>
+ * <p>
+ * Counts are kept by virtual address only, so when several programs run, an
+ * address is attributed to the most recently loaded program that has a
+ * section there.
+ */
+public final class Profiler {
+    /**
+     * Allocate a new profiler.
+     *
+     * @param privilege encapsulates privileged access to the Nachos machine.
+     */
+    Profiler(Privilege privilege) {
+        this.privilege = privilege;
+
+        topN = Config.getInteger("Profiler.topN", 20);
+        collapsedFile = Config.getString("Profiler.collapsedFile");
+    }
+
+    /**
+     * Count one execution of the instruction at the specified address.
+     *
+     * @param pc the virtual address of the instruction.
+     */
+    void count(int pc) {
+        int index = pc >>> 2;
+
+        if (index >= counts.length) {
+            if (index >= maxIndex) {
+                otherCount++;
+                return;
+            }
+
+            counts = Arrays.copyOf(counts,
+                    Math.min(maxIndex, Math.max(index + 1, counts.length * 2)));
+        }
+
+        counts[index]++;
+    }
+
+    /**
+     * Remember the sections and procedures of a program that was just
+     * loaded, so that addresses can be attributed to them.
+     *
+     * @param coff the program's executable.
+     * @param name the name of the program.
+     */
+    void addProgram(Coff coff, String name) {
+        programs.add(new Program(coff, name));
+    }
+
+    /**
+     * Print the most frequently executed addresses, and write the
+     * collapsed-stack file if one was requested.
+     */
+    void print() {
+        long total = otherCount;
+        int numAddresses = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                total += counts[i];
+                numAddresses++;
+            }
+        }
+
+        int[] indices = new int[numAddresses];
+        for (int i = 0, j = 0; i < counts.length; i++) {
+            if (counts[i] != 0)
+                indices[j++] = i;
+        }
+
+        System.out.println("Profile: " + total + " instructions executed at "
+                + numAddresses + " addresses");
+
+        // partial selection sort, since only the first few are printed
+        int numPrinted = Math.min(topN, numAddresses);
+        for (int i = 0; i < numPrinted; i++) {
+            int max = i;
+            for (int j = i + 1; j < numAddresses; j++) {
+                if (counts[indices[j]] > counts[indices[max]])
+                    max = j;
+            }
+
+            int index = indices[max];
+            indices[max] = indices[i];
+            indices[i] = index;
+
+            int pc = index << 2;
+            System.out.println("\t0x" + Lib.toHexString(pc) + "\t"
+                    + counts[index] + "\t"
+                    + counts[index] * 1000L / total / 10.0 + "%\t"
+                    + describe(pc, " "));
+        }
+
+        if (collapsedFile != null)
+            writeCollapsed();
+    }
+
+    /**
+     * Write the profile in collapsed-stack format.
+     */
+    private void writeCollapsed() {
+        final Map<String, Long> stacks = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                String stack = describe(i << 2, ";");
+                Long count = stacks.get(stack);
+                stacks.put(stack, (count == null ? 0 : count) + counts[i]);
+            }
+        }
+        if (otherCount != 0)
+            stacks.put("[unknown]", otherCount);
+
+        privilege.doPrivileged(new Runnable() {
+            public void run() {
+                try {
+                    PrintWriter out =
+                            new PrintWriter(new FileWriter(collapsedFile));
+                    for (Map.Entry<String, Long> entry : stacks.entrySet())
+                        out.println(entry.getKey() + " " + entry.getValue());
+                    out.close();
+                } catch (IOException e) {
+                    System.out.println("Profiler: could not write "
+                            + collapsedFile);
+                }
+            }
+        });
+    }
+
+    /**
+     * Describe the program, section and procedure containing an address.
+     *
+     * @param pc        the virtual address.
+     * @param separator the string to put between the parts.
+     * @return the description.
+     */
+    private String describe(int pc, String separator) {
+        int vpn = Processor.pageFromAddress(pc);
+
+        for (int p = programs.size() - 1; p >= 0; p--) {
+            Program program = programs.get(p);
+
+            for (int s = 0; s < program.sectionNames.length; s++) {
+                if (vpn >= program.firstVPNs[s] &&
+                        vpn < program.firstVPNs[s] + program.lengths[s]) {
+                    String procedure = program.coff.getProcedureName(pc);
+                    if (procedure == null)
+                        procedure = "0x" + Lib.toHexString(pc);
+
+                    return program.name + separator + program.sectionNames[s]
+                            + separator + procedure;
+                }
+            }
+        }
+
+        return "[unknown]" + separator + "0x" + Lib.toHexString(pc);
+    }
+
+    /**
+     * The sections of a loaded program. They are copied, since a
+     * <tt>Coff</tt> forgets its sections when it is closed.
+     */
+    private static class Program {
+        Program(Coff coff, String name) {
+            this.coff = coff;
+            this.name = name;
+
+            int numSections = coff.getNumSections();
+            sectionNames = new String[numSections];
+            firstVPNs = new int[numSections];
+            lengths = new int[numSections];
+
+            for (int s = 0; s < numSections; s++) {
+                CoffSection section = coff.getSection(s);
+                sectionNames[s] = section.getName();
+                firstVPNs[s] = section.getFirstVPN();
+                lengths[s] = section.getLength();
+            }
+        }
+
+        final Coff coff;
+        final String name;
+        final String[] sectionNames;
+        final int[] firstVPNs, lengths;
+    }
+
+    private Privilege privilege;
+
+    /**
+     * The number of times each instruction was executed, indexed by virtual
+     * word address.
+     */
+    private int[] counts = new int[1024];
+    /**
+     * The number of executions at addresses too high to count separately.
+     */
+    private long otherCount = 0;
+    /**
+     * The programs that have been loaded, in the order they were loaded.
+     */
+    private ArrayList<Program> programs = new ArrayList<Program>();
+
+    private int topN;
+    private String collapsedFile;
+
+    /**
+     * One more than the highest word address counted separately (the first
+     * 64MB of the address space).
+     */
+    private static final int maxIndex = 1 << 24;
+}
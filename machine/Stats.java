@@ -29,6 +29,22 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	// printed only on request, so the usual output stays the same
+	if (Config.getBoolean("Stats.threads", false)) {
+	    System.out.println("Threads: context switches " + numContextSwitches
+			       + ", forks " + numForks);
+	}
+
+	// host times differ from run to run, so they are only printed on request
+	if (Config.getBoolean("Stats.hostTimes", false) && numForks > 0) {
+	    System.out.println("Host: fork latency " + forkTime / numForks / 1000
+			       + "us average, " + numPooledForks
+			       + " forks reused a pooled thread");
+	}
+
+	if (numMissedDeadlines > 0)
+	    System.out.println("Deadlines: missed " + numMissedDeadlines);
     }
 
     /**
@@ -61,6 +77,19 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of times the processor switched threads. */
+    public int numContextSwitches = 0;
+    /** The total number of threads started, after the first one. */
+    public int numForks = 0;
+    /** The number of those threads that reused a pooled Java thread. */
+    public int numPooledForks = 0;
+    /**
+     * The total host time, in nanoseconds, spent starting those threads.
+     * Unlike the other statistics, this is real time, not simulated time.
+     */
+    public long forkTime = 0;
+    /** The number of thread deadlines that passed before the work was done. */
+    public int numMissedDeadlines = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
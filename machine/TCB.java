@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,25 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * Control is handed from one TCB to the next by unparking the next TCB's
+ * thread and parking the current one, so exactly one TCB runs at a time.
+ * If <tt>TCB.virtualThreads</tt> is set and the JVM supports virtual threads
+ * (Java 21 and later), every TCB runs in a virtual thread, including the
+ * first, while the main Java thread waits for Nachos to exit. A handoff
+ * between virtual threads then only unmounts one continuation and mounts
+ * another, with no OS thread blocking or waking, and many more TCBs can exist
+ * at once; raise <tt>TCB.maxThreads</tt> to use them. On older JVMs the
+ * setting is ignored and platform threads are used.
+ *
+ * <p>
+ * When a TCB is destroyed, its Java thread can be kept in a pool and reused
+ * to run the next TCB that starts, instead of creating a new Java thread
+ * for every fork. <tt>TCB.poolSize</tt> sets how many idle Java threads may
+ * be kept (0, the default, disables the pool), and an idle thread exits
+ * once it has been idle for <tt>TCB.poolIdleTime</tt> milliseconds (if
+ * positive).
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +62,24 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	poolIdleNanos = Config.getInteger("TCB.poolIdleTime", 0) * 1000000L;
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    try {
+		virtualThreadBuilder =
+		    Thread.class.getMethod("ofVirtual").invoke(null);
+		unstartedThread = Class.forName("java.lang.Thread$Builder")
+		    .getMethod("unstarted", Runnable.class);
+	    }
+	    catch (Exception e) {
+		System.out.println("TCB: virtual threads are not supported, "
+				   + "using platform threads");
+		virtualThreadBuilder = null;
+	    }
+	}
     }
     
     /**
@@ -66,7 +106,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,27 +126,57 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    long startTime = System.nanoTime();
+
+	    /* If this is not the first TCB, we need a Java thread to run it:
+	     * an idle one from the pool if there is one, or else a new one.
+	     * Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    host = idleHosts.pollLast();
+	    boolean reused = (host != null);
+	    if (!reused) {
+		host = new HostThread(this);
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() { host.thread = newJavaThread(host); }
+		    });
+	    }
+	    else {
+		privilege.stats.numPooledForks++;
+	    }
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    javaThread = host.thread;
 
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * current TCB, starting the new Java thread (or handing this TCB
+	     * to the pooled one), and waiting for it to wake us up from
+	     * threadroot(). Once the new TCB wakes us up, it's safe to context
+	     * switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (reused)
+		host.assign(this);
+	    else
+		this.javaThread.start();
 	    currentTCB.waitForInterrupt();
+
+	    privilege.stats.numForks++;
+	    privilege.stats.forkTime += System.nanoTime() - startTime;
+	}
+	else if (virtualThreadBuilder != null) {
+	    /* This is the first TCB, but with virtual threads it gets one of
+	     * its own too, so that no handoff has to wake an OS thread. The
+	     * main Java thread then just waits for Nachos to exit.
+	     */
+	    javaThread = newJavaThread(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+	    javaThread.start();
+
+	    while (true)
+		LockSupport.park(this);
 	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
@@ -146,6 +216,8 @@ public final class TCB {
 	if (this == currentTCB)
 	    return;
 
+	privilege.stats.numContextSwitches++;
+
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
@@ -196,6 +268,16 @@ public final class TCB {
 	privilege.exit(0);
     }
 
+    /**
+     * Test if TCBs run in virtual threads.
+     *
+     * @return	<tt>true</tt> if <tt>TCB.virtualThreads</tt> is set and
+     *		supported.
+     */
+    static boolean usesVirtualThreads() {
+	return virtualThreadBuilder != null;
+    }
+
     /**
      * Test if the current JVM thread belongs to a Nachos TCB. The AWT event
      * dispatcher is an example of a non-Nachos thread.
@@ -207,6 +289,25 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create an unstarted Java thread to run a TCB: a virtual thread if
+     * <tt>TCB.virtualThreads</tt> is set and supported, otherwise a platform
+     * thread.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedThread.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create a virtual thread");
+	    }
+	}
+
+	return new Thread(target);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -272,6 +373,13 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Offer our Java thread to the pool before letting destroy()
+	     * return, so that the next TCB to start can reuse it. It will
+	     * wait for that TCB once threadroot() has returned.
+	     */
+	    if (host != null)
+		host.pooled = host.offer();
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -280,29 +388,122 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * The body of a Java thread that runs TCBs. It runs its first TCB, and
+     * then, as long as it gets put in the pool and is not reaped, each TCB
+     * that <tt>start()</tt> hands to it.
+     */
+    private static class HostThread implements Runnable {
+	HostThread(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+
+		if (!pooled || !awaitTCB())
+		    return;
+	    }
+	}
+
+	/**
+	 * Put this host thread in the pool, if there is room. Called by the
+	 * TCB being destroyed, before it acknowledges <tt>destroy()</tt>.
+	 *
+	 * @return	<tt>true</tt> if this host thread was put in the pool.
+	 */
+	boolean offer() {
+	    tcb = null;
+
+	    if (idleHosts.size() >= poolSize)
+		return false;
+
+	    idleHosts.offerLast(this);
+	    return true;
+	}
+
+	/**
+	 * Give a TCB to this host thread, which <tt>start()</tt> has just
+	 * taken out of the pool.
+	 */
+	void assign(TCB tcb) {
+	    this.tcb = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Wait in the pool until <tt>assign()</tt> gives this host thread a
+	 * TCB. If the idle time runs out first, and this host thread manages
+	 * to take itself out of the pool before <tt>start()</tt> takes it,
+	 * give up instead.
+	 *
+	 * @return	<tt>true</tt> if a TCB was assigned, or <tt>false</tt> if
+	 *		this host thread should exit.
+	 */
+	private boolean awaitTCB() {
+	    long deadline = System.nanoTime() + poolIdleNanos;
+
+	    while (tcb == null) {
+		if (poolIdleNanos <= 0) {
+		    LockSupport.park(this);
+		    continue;
+		}
+
+		long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+		    LockSupport.parkNanos(this, remaining);
+		}
+		else if (idleHosts.remove(this)) {
+		    return false;
+		}
+		else {
+		    // start() has taken us, and will assign a TCB shortly
+		    while (tcb == null)
+			LockSupport.park(this);
+		}
+	    }
+
+	    return true;
+	}
+
+	/** The Java thread running this host thread. */
+	Thread thread;
+	/** The TCB to run next, or <tt>null</tt> while idle. */
+	volatile TCB tcb;
+	/** Whether the last TCB put this host thread in the pool. */
+	boolean pooled = false;
+    }
+
+    /**
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Parking may return spuriously, and an unpark that arrives before we
+     * park makes the next park return at once, so we just recheck the flag.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
      * TCB.
+     *
+     * <p>
+     * <tt>running</tt> is volatile, so everything the waking thread did
+     * before setting it is visible to this TCB once it sees the flag set.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +528,38 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, set by <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * A <tt>Thread.Builder</tt> for virtual threads, and its
+     * <tt>unstarted(Runnable)</tt> method, or <tt>null</tt> if TCBs use
+     * platform threads. They are looked up by reflection, so that Nachos
+     * still builds for, and runs on, JVMs without virtual threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedThread = null;
+
+    /**
+     * The idle Java threads waiting to run a TCB, most recently used last,
+     * and the limits set by <tt>TCB.poolSize</tt> and
+     * <tt>TCB.poolIdleTime</tt>. Idle threads take themselves out when they
+     * are reaped, concurrently with the current TCB, hence the concurrent
+     * deque.
+     */
+    private static ConcurrentLinkedDeque<HostThread> idleHosts =
+	new ConcurrentLinkedDeque<HostThread>();
+    private static int poolSize = 0;
+    private static long poolIdleNanos = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +616,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +628,12 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+    /**
+     * The host thread running this TCB, or <tt>null</tt> for the first TCB,
+     * which runs in the main Java thread, or in a virtual thread of its own
+     * if TCBs use virtual threads.
+     */
+    private HostThread host = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
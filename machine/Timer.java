@@ -30,6 +30,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	oneShotInterrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +54,37 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as a one-shot timer interrupt handler. It is
+     * called at the time requested by <tt>scheduleOneShot()</tt>, separately
+     * from the periodic timer interrupt.
+     *
+     * @param	handler		the one-shot timer interrupt handler.
+     */
+    public void setOneShotHandler(Runnable handler) {
+	this.oneShotHandler = handler;
+    }
+
+    /**
+     * Request a one-shot timer interrupt at the specified time, replacing any
+     * request that has not been delivered yet. A time that is not in the
+     * future is delivered on the next tick.
+     *
+     * @param	time	the time of the interrupt, or a negative number to
+     *			cancel the outstanding request.
+     */
+    public void scheduleOneShot(long time) {
+	if (oneShotHandle != noOneShot) {
+	    privilege.interrupt.cancel(oneShotHandle);
+	    oneShotHandle = noOneShot;
+	}
+
+	if (time >= 0)
+	    oneShotHandle =
+		privilege.interrupt.schedule(Math.max(1, time - getTime()),
+					     "timerOneShot", oneShotInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -59,6 +94,14 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Count a thread that was still running, or ready to run, when its
+     * deadline passed. Called by schedulers that know about deadlines.
+     */
+    public void deadlineMissed() {
+	privilege.stats.numMissedDeadlines++;
+    }
+
     private void timerInterrupt() {
 	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
@@ -69,6 +112,13 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void oneShotInterrupt() {
+	oneShotHandle = noOneShot;
+
+	if (oneShotHandler != null)
+	    oneShotHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,7 +133,12 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable oneShotInterrupt;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable oneShotHandler = null;
+    private long oneShotHandle = noOneShot;
+
+    private static final long noOneShot = -1;
 }
@@ -272,10 +272,32 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JVM creates the carrier threads of virtual threads on demand,
+	// from whichever Nachos thread happens to wake a virtual thread up
+	if (!isPrivileged() && isCreatingCarrierThread())
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Test if the permission being checked is needed by the JVM to create a
+     * carrier thread for virtual threads, which it may do in any thread that
+     * starts or unparks a virtual thread.
+     *
+     * @return	<tt>true</tt> if a carrier thread is being created.
+     */
+    private boolean isCreatingCarrierThread() {
+	Class[] context = getClassContext();
+	for (int i = 0; i < context.length; i++) {
+	    if (context[i].getName().equals(carrierThreadClassName))
+		return true;
+	}
+
+	return false;
+    }
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -314,5 +336,8 @@ public class NachosSecurityManager extends SecurityManager {
     private Thread privileged = null;
     private int privilegeCount = 0;
     
+    private static final String carrierThreadClassName =
+	"jdk.internal.misc.CarrierThread";
+
     private static final char dbgSecurity = 'S';
 }
@@ -147,8 +147,19 @@ public abstract class Privilege {
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel an interrupt scheduled by <tt>schedule()</tt>, if it has not
+	 * occurred yet.
+	 *
+	 * @param	handle	the handle returned by <tt>schedule()</tt>.
+	 * @return	<tt>true</tt> if the interrupt was still pending and has
+	 *		been cancelled.
+	 */
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,25 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can pass before any pending
+	 * interrupt becomes due. The processor may run this many instructions
+	 * and charge for them with a single call to <tt>advance()</tt>.
+	 *
+	 * @return	the number of user ticks until the next interrupt must be
+	 *		dispatched.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without dispatching any interrupts. No pending interrupt may become
+	 * due as a result.
+	 *
+	 * @param	userTicks	the number of user ticks to charge.
+	 */
+	public void advance(long userTicks);
     }
 
     /**
@@ -3,33 +3,6 @@ package nachos.threads;
 import nachos.machine.*;
 
 import javax.crypto.Mac;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-
-/**
- * A PriorThread combines a thread and its the priority, i.e., when to wake up.
- */
-class PriorThread {
-    public KThread thread;
-    public long priority;
-
-    public PriorThread(KThread t, long p) {
-        thread = t;
-        priority = p;
-    }
-
-    public static class Comp implements Comparator<PriorThread> {
-        public int compare(PriorThread a, PriorThread b) {
-            if (a.priority > b.priority)
-                return 1;
-            else if (a.priority < b.priority)
-                return -1;
-            return 0;
-        }
-    }
-}
-
-
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -47,36 +20,78 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+        timers = new TimingWheel(Machine.timer().getTime());
+
+        oneShot = Config.getBoolean("Alarm.oneShot", false);
+        if (oneShot) {
+            Machine.timer().setOneShotHandler(new Runnable() {
+                public void run() { wakeExpired(); }
+            });
+        }
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, once the current thread has used up its quantum.
+     *
+     * @see	nachos.threads.KThread#quantumExpired()
      */
     public void timerInterrupt() {
-
-        /**
-         * Since we use a priority queue here, we need to check just one element
-         * which is the smallest one.
-         */
     	boolean initStatus = Machine.interrupt().disable();
-    	
-        while (!waitQueue.isEmpty()) {
-            PriorThread priorThread = waitQueue.peek();
-            if (priorThread.priority <= Machine.timer().getTime()) { /** we are ready! */
-                waitQueue.poll();
-               // System.out.println("poll from alarm waitqueue\n");
-                priorThread.thread.ready();
-            } else {  /** don't need to see other processes */
-                break;
-            }
-        }
-        
+
+        wakeExpired();
+        ThreadedKernel.scheduler.timerInterrupt();
+        boolean preempt = KThread.quantumExpired();
+
         Machine.interrupt().restore(initStatus);
         // continue the original
-        KThread.currentThread().yield();
+        if (preempt)
+            KThread.currentThread().yield();
+    }
+
+    /**
+     * Wake every thread whose time to wake up has come, and run every
+     * callback whose time has come. If
+     * <tt>Alarm.oneShot</tt> is set, also ask the timer for a one-shot
+     * interrupt when the next one is due, so that it does not have to wait
+     * for a periodic timer interrupt.
+     */
+    private void wakeExpired() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        TimingWheel.Node node = timers.expire(Machine.timer().getTime());
+        while (node != null) {
+            TimingWheel.Node next = node.next;
+            KThread thread = node.thread;
+            Runnable callback = node.callback;
+
+            timers.free(node);
+            if (thread != null)
+                thread.ready();
+            if (callback != null)
+                callback.run();
+
+            node = next;
+        }
+
+        if (oneShot)
+            requestOneShot();
+    }
+
+    /**
+     * Ask the timer for a one-shot interrupt at the next time the timing
+     * wheel has something to do, unless one has already been requested.
+     */
+    private void requestOneShot() {
+        long next = timers.nextEventTime();
+        if (next == oneShotTime)
+            return;
+
+        oneShotTime = next;
+        Machine.timer().scheduleOneShot(next == Long.MAX_VALUE ? -1 : next);
     }
 
     /**
@@ -94,22 +109,156 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
     	boolean initStatus = Machine.interrupt().disable();
-	
-    	long wakeTime = Machine.timer().getTime() + x;
 
-        // We add current thread to the priority queue, and let it sleep.
+        // We add current thread to the timing wheel, and let it sleep.
         KThread currentThread = KThread.currentThread();
-        PriorThread priorThread = new PriorThread(currentThread, wakeTime);
-        waitQueue.add(priorThread);
+        TimingWheel.Node node = timers.add(Machine.timer().getTime() + x);
+        node.thread = currentThread;
+
+        if (oneShot)
+            requestOneShot();
+
         currentThread.sleep();
 
         Machine.interrupt().restore(initStatus);
+    }
 
+    /**
+     * Run a callback once at least <i>x</i> ticks have passed, during the
+     * first timer interrupt where
+     *
+     * <p><blockquote>
+     * (current time) >= (schedule called time)+(x)
+     * </blockquote>
+     *
+     * <p>
+     * The callback runs in the timer interrupt handler, with interrupts
+     * disabled, so it must not sleep.
+     *
+     * @param	x		the minimum number of clock ticks to wait.
+     * @param	callback	the callback to run.
+     * @return	a handle that can cancel the callback before it runs.
+     */
+    public Timeout schedule(long x, Runnable callback) {
+        Lib.assertTrue(callback != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        TimingWheel.Node node = timers.add(Machine.timer().getTime() + x);
+        node.callback = callback;
+
+        if (oneShot)
+            requestOneShot();
+
+        Timeout timeout = new Timeout(node);
+
+        Machine.interrupt().restore(intStatus);
+
+        return timeout;
     }
 
-    private PriorityQueue<PriorThread> waitQueue = new PriorityQueue(new PriorThread.Comp());
+    /**
+     * Put the current thread to sleep until another thread takes it off a
+     * thread queue with <tt>nextThread()</tt>, or until at least <i>x</i>
+     * ticks have passed, whichever comes first. If the time runs out, the
+     * thread is removed from the queue before it is woken. The caller must
+     * already have added the current thread to the queue with
+     * <tt>waitForAccess()</tt>, and interrupts must be disabled.
+     *
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @param	x		the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was taken off the queue, or
+     *		<tt>false</tt> if the time ran out.
+     */
+    boolean sleepOn(ThreadQueue waitQueue, long x) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        TimedWakeup wakeup =
+                new TimedWakeup(waitQueue, KThread.currentThread());
+        Timeout timeout = schedule(x, wakeup);
+
+        KThread.sleep();
+
+        // woken by nextThread(), so the timer is no longer needed
+        timeout.cancel();
+
+        return !wakeup.timedOut;
+    }
+
+    /**
+     * A callback scheduled with <tt>schedule()</tt>, which can be cancelled
+     * until it runs.
+     */
+    public class Timeout {
+        private Timeout(TimingWheel.Node node) {
+            this.node = node;
+            this.generation = node.generation;
+        }
+
+        /**
+         * Cancel the callback, if it has not run yet.
+         *
+         * @return	<tt>true</tt> if the callback was cancelled, or
+         *		<tt>false</tt> if it has already run, is about to run, or
+         *		was already cancelled.
+         */
+        public boolean cancel() {
+            boolean intStatus = Machine.interrupt().disable();
+
+            // the node is reused once the timer is gone
+            boolean pending =
+                    node.generation == generation && timers.contains(node);
+            if (pending) {
+                timers.remove(node);
+                timers.free(node);
+            }
+
+            Machine.interrupt().restore(intStatus);
+
+            return pending;
+        }
+
+        private TimingWheel.Node node;
+        private int generation;
+    }
+
+    /**
+     * The callback that ends a timed wait in <tt>sleepOn()</tt>, unless the
+     * thread has already been taken off the queue.
+     */
+    private static class TimedWakeup implements Runnable {
+        TimedWakeup(ThreadQueue waitQueue, KThread thread) {
+            this.waitQueue = waitQueue;
+            this.thread = thread;
+        }
+
+        public void run() {
+            if (waitQueue.remove(thread)) {
+                timedOut = true;
+                thread.ready();
+            }
+        }
+
+        private ThreadQueue waitQueue;
+        private KThread thread;
+        private boolean timedOut = false;
+    }
+
+    /**
+     * The sleeping threads and scheduled callbacks, by the time they are
+     * due.
+     */
+    private TimingWheel timers;
+    /**
+     * <tt>true</tt> if the alarm requests one-shot timer interrupts.
+     */
+    private boolean oneShot;
+    /**
+     * The time of the outstanding one-shot interrupt request, or
+     * <tt>Long.MAX_VALUE</tt> if there is none.
+     */
+    private long oneShotTime = Long.MAX_VALUE;
 
     static class Timer implements Runnable {
         long t;
@@ -26,7 +26,9 @@ public class Condition2 {
     public Condition2(Lock conditionLock) {
         this.conditionLock = conditionLock;
 
-        this.waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+        // no thread holds a condition variable, so there is no one to
+        // donate priority to; the lock takes care of that
+        this.waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -49,6 +51,31 @@ public class Condition2 {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting after at least <i>x</i>
+     * ticks if no other thread has woken the current thread by then. The
+     * thread reacquires the lock either way.
+     *
+     * @param x the maximum number of clock ticks to wait.
+     * @return <tt>true</tt> if another thread woke the current thread, or
+     * <tt>false</tt> if the time ran out.
+     */
+    public boolean sleepFor(long x) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread currentThread = KThread.currentThread();
+        waitQueue.waitForAccess(currentThread);
+        conditionLock.release();
+        boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, x);
+        conditionLock.acquire();
+
+        Machine.interrupt().restore(intStatus);
+
+        return woken;
+    }
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
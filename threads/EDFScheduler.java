@@ -0,0 +1,544 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.*;
+
+/**
+ * An earliest-deadline-first real-time scheduler.
+ * <p>
+ * <p>
+ * The next thread to be dequeued is always the waiting thread with the
+ * earliest deadline. Threads without a deadline come after all those with
+ * one, and share the CPU round-robin. Threads with equal deadlines are
+ * dequeued in the order they were added.
+ * <p>
+ * <p>
+ * A thread can be given a one-time deadline with <tt>KThread.setDeadline()</tt>,
+ * or a reservation of a budget of CPU time in every period with
+ * <tt>KThread.setPeriod()</tt>. A reservation is only made if the total
+ * fraction of the CPU reserved stays at most
+ * <tt>EDFScheduler.maxUtilization</tt> (default 1), which is enough for EDF
+ * to meet every reserved deadline. Each reservation is run as a constant
+ * bandwidth server: the deadline is the end of the current period, and a
+ * thread that uses up its budget early gets a fresh budget with its deadline
+ * moved a period later, so an overrunning thread cannot take time reserved
+ * for the others. A thread that wakes up with more budget left than it could
+ * use by its deadline starts a new period.
+ * <p>
+ * <p>
+ * Every time a thread with a deadline is found running or being dispatched
+ * after its deadline, it is counted once as a missed deadline in
+ * <tt>Stats</tt>.
+ * <p>
+ * <p>
+ * Deadlines are inherited through locks and joins: a thread that owns a queue
+ * that transfers priority runs with the earliest deadline of the threads
+ * waiting on it, if that is earlier than its own.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+        maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 1.0);
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if the owner of this queue should
+     *                         inherit the deadlines of the waiting threads.
+     * @return a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new DeadlineQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, in which woken periodic threads may start a
+     * new period.
+     *
+     * @return the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new DeadlineQueue(false);
+        return readyQueue;
+    }
+
+    public void setDeadline(KThread thread, long deadline) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState threadState = getThreadState(thread);
+        threadState.deadline = deadline;
+        threadState.changed();
+    }
+
+    public boolean setPeriod(KThread thread, long period, long budget) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        Lib.assertTrue(period == 0 || (budget > 0 && budget <= period));
+
+        ThreadState threadState = getThreadState(thread);
+        double others = utilization - threadState.utilization();
+
+        if (period == 0) {
+            if (threadState.period == 0)
+                return true;
+
+            utilization = others;
+            threadState.period = threadState.budget = 0;
+            threadState.deadline = Long.MAX_VALUE;
+        } else {
+            if (others + (double) budget / period > maxUtilization) {
+                Lib.debug(dbgEDF, "Rejecting " + thread + " with utilization "
+                        + others + " + " + budget + "/" + period);
+                return false;
+            }
+
+            threadState.period = period;
+            threadState.budget = budget;
+            utilization = others + threadState.utilization();
+            threadState.newPeriod(Machine.timer().getTime());
+        }
+
+        threadState.changed();
+        return true;
+    }
+
+    /**
+     * Return the time slice of the specified thread: 0 if a ready thread has
+     * an earlier deadline, the default quantum if one has the same deadline,
+     * and unlimited otherwise. A thread that overruns its budget gets a later
+     * deadline when it is charged at a timer interrupt, and may be preempted
+     * then.
+     */
+    public long getQuantum(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (readyQueue == null || readyQueue.size == 0)
+            return quantum;
+
+        long deadline = getThreadState(thread).effectiveDeadline;
+        long first = readyQueue.heap[0].effectiveDeadline;
+        if (first < deadline)
+            return 0;
+        if (first == deadline)
+            return quantum;
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Charge the current thread for the time it has run, and check its
+     * deadline.
+     */
+    public void timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState threadState = getThreadState(KThread.currentThread());
+        threadState.charge();
+        threadState.checkDeadline();
+    }
+
+    private static final char dbgEDF = 'e';
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Pass a change in the waiting threads of a queue on to its owner, and
+     * from there along the chain of queues the owners wait on, as long as
+     * the inherited deadlines change.
+     *
+     * @param queue the queue whose waiting threads changed.
+     */
+    protected static void propagate(DeadlineQueue queue) {
+        while (queue != null && queue.transferPriority &&
+                queue.ownedThread != null) {
+            ThreadState owner = queue.ownedThread;
+            if (!owner.updateEffectiveDeadline())
+                return;
+            queue = owner.waitingFor;
+        }
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the
+     * earliest effective deadline, kept in a binary heap so that every
+     * operation takes logarithmic time.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+        DeadlineQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            Lib.assertTrue(threadState.waitingFor == null);
+            Lib.assertTrue(ownedThread != threadState || !transferPriority);
+
+            if (thread == KThread.currentThread())
+                threadState.charge();
+            else if (this == readyQueue)
+                threadState.wake();
+
+            threadState.order = ++numAdded;
+            add(threadState);
+            threadState.waitingFor = this;
+
+            propagate(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            setOwner(getThreadState(thread));
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            setOwner(null);
+            if (size == 0)
+                return null;
+
+            ThreadState threadState = heap[0];
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            if (this == readyQueue)
+                threadState.checkDeadline();
+
+            setOwner(threadState);
+            return threadState.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            // its deadline is no longer inherited by the owner
+            propagate(this);
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i] + " ");
+        }
+
+        /**
+         * Give this queue a new owner, or none. Only the owner of a queue
+         * that transfers priority inherits deadlines, so only it is kept.
+         */
+        private void setOwner(ThreadState threadState) {
+            if (!transferPriority)
+                return;
+
+            if (ownedThread != null) {
+                ThreadState oldOwner = ownedThread;
+                Lib.assertTrue(oldOwner.ownedQueues.remove(this));
+                ownedThread = null;
+                if (oldOwner.updateEffectiveDeadline())
+                    propagate(oldOwner.waitingFor);
+            }
+
+            if (threadState != null) {
+                ownedThread = threadState;
+                Lib.assertTrue(!threadState.ownedQueues.contains(this));
+                threadState.ownedQueues.add(this);
+                propagate(this);
+            }
+        }
+
+        /**
+         * Return the earliest effective deadline of the waiting threads.
+         */
+        long firstDeadline() {
+            return size == 0 ? Long.MAX_VALUE : heap[0].effectiveDeadline;
+        }
+
+        void add(ThreadState threadState) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+
+            heap[size] = threadState;
+            threadState.index = size;
+            size++;
+            siftUp(threadState.index);
+        }
+
+        void unlink(ThreadState threadState) {
+            int index = threadState.index;
+            Lib.assertTrue(heap[index] == threadState);
+
+            size--;
+            if (index != size) {
+                heap[index] = heap[size];
+                heap[index].index = index;
+                siftDown(index);
+                siftUp(index);
+            }
+            heap[size] = null;
+        }
+
+        /**
+         * Move a thread whose effective deadline changed to its new place.
+         */
+        void reposition(ThreadState threadState) {
+            siftDown(threadState.index);
+            siftUp(threadState.index);
+        }
+
+        private void siftUp(int index) {
+            ThreadState threadState = heap[index];
+
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!threadState.before(heap[parent]))
+                    break;
+
+                heap[index] = heap[parent];
+                heap[index].index = index;
+                index = parent;
+            }
+
+            heap[index] = threadState;
+            threadState.index = index;
+        }
+
+        private void siftDown(int index) {
+            ThreadState threadState = heap[index];
+
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1].before(heap[child]))
+                    child++;
+                if (!heap[child].before(threadState))
+                    break;
+
+                heap[index] = heap[child];
+                heap[index].index = index;
+                index = child;
+            }
+
+            heap[index] = threadState;
+            threadState.index = index;
+        }
+
+        /**
+         * <tt>true</tt> if the owner of this queue should inherit the
+         * deadlines of the waiting threads.
+         */
+        public boolean transferPriority;
+        public ThreadState ownedThread = null;
+
+        private ThreadState[] heap = new ThreadState[16];
+        private int size = 0;
+        private long numAdded = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline and reservation, the
+     * deadline it inherits, the queues it owns, and the queue it's waiting
+     * for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with the
+         * specified thread. The thread has no deadline.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Return the fraction of the CPU reserved for the associated thread.
+         */
+        double utilization() {
+            return period == 0 ? 0 : (double) budget / period;
+        }
+
+        /**
+         * Start a new period at the specified time, with a full budget.
+         */
+        void newPeriod(long time) {
+            remaining = budget;
+            deadline = time + period;
+            chargedTime = thread.getRunTime();
+        }
+
+        /**
+         * Charge the associated thread for the ticks it has run since it was
+         * last charged. If that uses up its budget, give it a fresh budget
+         * and a deadline a period later.
+         */
+        void charge() {
+            long runTime = thread.getRunTime();
+            long used = runTime - chargedTime;
+            chargedTime = runTime;
+
+            if (period == 0)
+                return;
+
+            remaining -= used;
+            if (remaining > 0)
+                return;
+
+            // as many fresh budgets as it takes to pay off the overrun
+            long periods = -remaining / budget + 1;
+            remaining += periods * budget;
+            deadline += periods * period;
+            changed();
+        }
+
+        /**
+         * Called when the associated thread is woken. If it has more budget
+         * left than it could use by its deadline at its reserved rate, it
+         * would take time from the others, so it starts a new period.
+         */
+        void wake() {
+            if (period == 0)
+                return;
+
+            long time = Machine.timer().getTime();
+            if (deadline <= time ||
+                    (double) remaining * period > (double) (deadline - time) * budget) {
+                newPeriod(time);
+                changed();
+            }
+        }
+
+        /**
+         * Count a missed deadline if the associated thread's deadline has
+         * passed, unless it was already counted.
+         */
+        void checkDeadline() {
+            if (deadline != Long.MAX_VALUE && deadline != missedDeadline &&
+                    Machine.timer().getTime() > deadline) {
+                Lib.debug(dbgEDF, thread + " missed its deadline " + deadline);
+
+                missedDeadline = deadline;
+                Machine.timer().deadlineMissed();
+            }
+        }
+
+        /**
+         * Called when the associated thread's own deadline changed.
+         */
+        void changed() {
+            if (updateEffectiveDeadline())
+                propagate(waitingFor);
+        }
+
+        /**
+         * Recompute the effective deadline from the thread's own deadline and
+         * those of the threads waiting on the queues it owns, and if it
+         * changed, move the thread to its new place in the queue it waits
+         * on. The caller passes the change on.
+         *
+         * @return <tt>true</tt> if the effective deadline changed.
+         */
+        boolean updateEffectiveDeadline() {
+            long newDeadline = deadline;
+            for (DeadlineQueue queue : ownedQueues)
+                newDeadline = Math.min(newDeadline, queue.firstDeadline());
+
+            if (newDeadline == effectiveDeadline)
+                return false;
+
+            effectiveDeadline = newDeadline;
+            if (waitingFor != null)
+                waitingFor.reposition(this);
+            return true;
+        }
+
+        /**
+         * Return <tt>true</tt> if this thread should be dequeued before the
+         * specified thread.
+         */
+        boolean before(ThreadState threadState) {
+            if (effectiveDeadline != threadState.effectiveDeadline)
+                return effectiveDeadline < threadState.effectiveDeadline;
+            return order < threadState.order;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Process %s [deadline = %d, effective = %d, remaining = %d] ",
+                    thread.getName(), deadline, effectiveDeadline, remaining);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The thread's own deadline, or <tt>Long.MAX_VALUE</tt> if none.
+         */
+        protected long deadline = Long.MAX_VALUE;
+        /**
+         * The earlier of the thread's own deadline and those it inherits.
+         */
+        protected long effectiveDeadline = Long.MAX_VALUE;
+        /**
+         * The thread's reservation, or 0 if it has none, and what is left of
+         * its budget in the current period.
+         */
+        protected long period = 0, budget = 0, remaining = 0;
+        protected DeadlineQueue waitingFor = null;
+
+        /**
+         * The thread's run time when it was last charged.
+         */
+        private long chargedTime = 0;
+        /**
+         * The last deadline counted as missed.
+         */
+        private long missedDeadline = Long.MAX_VALUE;
+
+        /**
+         * The position of this thread in the heap of <tt>waitingFor</tt>, and
+         * the order in which it was added there, to break ties.
+         */
+        int index;
+        long order;
+
+        protected LinkedList<DeadlineQueue> ownedQueues = new LinkedList<>();
+    }
+
+    private double maxUtilization;
+    /**
+     * The total fraction of the CPU reserved.
+     */
+    private double utilization = 0;
+    private DeadlineQueue readyQueue = null;
+}
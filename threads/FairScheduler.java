@@ -0,0 +1,364 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.*;
+
+/**
+ * A scheduler that shares the CPU fairly, in the style of the Linux
+ * completely fair scheduler.
+ * <p>
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the ticks it has run, scaled by
+ * a weight that depends on its priority. The next thread to be dequeued is
+ * always the waiting thread with the lowest virtual runtime, so threads that
+ * have had less than their share of the CPU run first. Each step up in
+ * priority multiplies the weight by 1.25, which gives a thread about 10% more
+ * of the CPU when it competes with a thread one step below.
+ * <p>
+ * <p>
+ * A thread is charged at every timer interrupt and whenever it yields or
+ * blocks, for the ticks it has run since it was last charged. A thread that
+ * has slept is placed no further back than half of
+ * <tt>FairScheduler.latency</tt> behind the lowest virtual runtime of the
+ * queue, so it runs soon but cannot make up for all the time it slept.
+ * <p>
+ * <p>
+ * The running thread's time slice is its weight's share of
+ * <tt>FairScheduler.latency</tt> ticks, but no less than
+ * <tt>FairScheduler.granularity</tt>. It is preempted early when a ready
+ * thread's virtual runtime is behind its own by more than the granularity.
+ * Priority is not donated through locks and joins.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+        latency = Config.getInteger("FairScheduler.latency", 4000);
+        granularity = Config.getInteger("FairScheduler.granularity", 500);
+
+        weights = new long[priorityMaximum + 1];
+        for (int priority = priorityMinimum; priority <= priorityMaximum; priority++)
+            weights[priority] = Math.round(weightDefault *
+                    Math.pow(1.25, priority - priorityDefault));
+    }
+
+    /**
+     * Allocate a new fair thread queue. Priority is not transferred, whatever
+     * <tt>transferPriority</tt> says.
+     *
+     * @param transferPriority ignored.
+     * @return a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new FairQueue();
+    }
+
+    /**
+     * Allocate the ready queue, whose threads are considered for preempting
+     * the running thread.
+     *
+     * @return the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new FairQueue();
+        return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).priority;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        ThreadState threadState = getThreadState(thread);
+        FairQueue queue = threadState.waitingFor;
+        if (queue != null)
+            queue.unlink(threadState);
+
+        threadState.priority = priority;
+
+        if (queue != null)
+            queue.add(threadState);
+    }
+
+    /**
+     * Return the running thread's time slice, or 0 if a ready thread is far
+     * enough behind it in virtual runtime that it should be preempted now.
+     */
+    public long getQuantum(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState threadState = getThreadState(thread);
+        if (readyQueue == null || readyQueue.waiting.isEmpty())
+            return latency;
+
+        ThreadState first = readyQueue.waiting.first();
+        if (threadState.vruntime - first.vruntime >
+                granularity * weightDefault / threadState.weight())
+            return 0;
+
+        long totalWeight = readyQueue.totalWeight + threadState.weight();
+        return Math.max(granularity, latency * threadState.weight() / totalWeight);
+    }
+
+    /**
+     * Charge the current thread for the ticks it has run since it was last
+     * charged.
+     */
+    public void timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        getThreadState(KThread.currentThread()).charge();
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * The weight of a thread at the default priority. Virtual runtime goes at
+     * the same rate as real ticks for such a thread.
+     */
+    private static final long weightDefault = 1024;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * virtual runtime, kept in a balanced tree, so that every operation takes
+     * logarithmic time. Threads with equal virtual runtimes are dequeued in
+     * the order they were added.
+     */
+    protected class FairQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            Lib.assertTrue(threadState.waitingFor == null);
+
+            if (thread == KThread.currentThread()) {
+                threadState.charge();
+            } else {
+                // a thread that slept gets some credit, but not all of it
+                threadState.vruntime = Math.max(threadState.vruntime,
+                        minVruntime - latency / 2);
+            }
+
+            threadState.order = ++numAdded;
+            add(threadState);
+            threadState.waitingFor = this;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (waiting.isEmpty())
+                return null;
+
+            ThreadState threadState = waiting.first();
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            minVruntime = Math.max(minVruntime, threadState.vruntime);
+
+            return threadState.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (ThreadState threadState : waiting)
+                System.out.print(threadState + " ");
+        }
+
+        void add(ThreadState threadState) {
+            Lib.assertTrue(waiting.add(threadState));
+            totalWeight += threadState.weight();
+        }
+
+        void unlink(ThreadState threadState) {
+            Lib.assertTrue(waiting.remove(threadState));
+            totalWeight -= threadState.weight();
+        }
+
+        /**
+         * The waiting threads, in the order they will be dequeued.
+         */
+        TreeSet<ThreadState> waiting = new TreeSet<ThreadState>(
+                new Comparator<ThreadState>() {
+                    public int compare(ThreadState a, ThreadState b) {
+                        if (a.vruntime != b.vruntime)
+                            return a.vruntime < b.vruntime ? -1 : 1;
+                        return Long.compare(a.order, b.order);
+                    }
+                });
+        /**
+         * The total weight of the waiting threads.
+         */
+        long totalWeight = 0;
+        /**
+         * The highest virtual runtime of a dequeued thread so far, which
+         * never goes back.
+         */
+        long minVruntime = 0;
+        private long numAdded = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its virtual runtime,
+     * and the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with the
+         * specified thread. A new thread starts level with the threads that
+         * are ready now.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+
+            if (readyQueue != null)
+                vruntime = readyQueue.minVruntime;
+        }
+
+        /**
+         * Return the weight of the associated thread.
+         */
+        long weight() {
+            return weights[priority];
+        }
+
+        /**
+         * Add the ticks the associated thread has run since it was last
+         * charged to its virtual runtime, scaled by its weight.
+         */
+        void charge() {
+            long runTime = thread.getRunTime();
+            vruntime += (runTime - chargedTime) * weightDefault / weight();
+            chargedTime = runTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Process %s [priority = %d, vruntime = %d] ",
+                    thread.getName(), priority, vruntime);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        protected int priority = priorityDefault;
+        /**
+         * The ticks the thread has run, scaled by <tt>weightDefault</tt>
+         * over its weight.
+         */
+        protected long vruntime = 0;
+        protected FairQueue waitingFor = null;
+
+        /**
+         * The thread's run time when it was last charged.
+         */
+        private long chargedTime = 0;
+        long order;
+    }
+
+    /**
+     * The weight of each priority.
+     */
+    private long[] weights;
+    private long latency;
+    private long granularity;
+    private FairQueue readyQueue = null;
+}
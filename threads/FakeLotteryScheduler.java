@@ -86,6 +86,16 @@ public class FakeLotteryScheduler extends PriorityScheduler {
             Lib.assertTrue(waitQueue.isEmpty());
         }
 
+        /**
+         * Remove a thread from wherever it is in the queue. This takes linear
+         * time, as does choosing the next thread.
+         */
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            return waitQueue.remove(thread);
+        }
+
         /**
          * Print out the contents of the queue.
          */
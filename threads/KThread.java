@@ -46,7 +46,7 @@ public class KThread {
         if (currentThread != null) {
             tcb = new TCB();
         } else {
-            readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+            readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             readyQueue.acquire(this);
 
             currentThread = this;
@@ -113,6 +113,64 @@ public class KThread {
         return (name + " (#" + id + ")");
     }
 
+    /**
+     * Set a deadline for this thread, by which it should have finished its
+     * current work. Only schedulers that know about deadlines use it.
+     *
+     * @param ticks the number of ticks from now, or a negative number for
+     *              no deadline.
+     * @return this thread.
+     */
+    public KThread setDeadline(long ticks) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        ThreadedKernel.scheduler.setDeadline(this, ticks < 0 ? Long.MAX_VALUE :
+                Machine.timer().getTime() + ticks);
+
+        Machine.interrupt().restore(intStatus);
+        return this;
+    }
+
+    /**
+     * Ask for this thread to be given <i>budget</i> ticks of CPU time in
+     * every <i>period</i> ticks, with the end of each period as its deadline.
+     * The scheduler may refuse, if it cannot guarantee the reservation along
+     * with those it has already made.
+     *
+     * @param period the length of each period, in ticks, or 0 to cancel the
+     *               reservation.
+     * @param budget the CPU time needed in each period, in ticks, from 1 to
+     *               <tt>period</tt>.
+     * @return <tt>true</tt> if the reservation was made.
+     * @see nachos.threads.Scheduler#setPeriod
+     */
+    public boolean setPeriod(long period, long budget) {
+        Lib.assertTrue(period == 0 || (budget > 0 && budget <= period));
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean admitted = ThreadedKernel.scheduler.setPeriod(this, period, budget);
+
+        Machine.interrupt().restore(intStatus);
+        return admitted;
+    }
+
+    /**
+     * Have this thread be given a currency of its own when it is forked,
+     * shared with the threads it forks in turn, so that however many of them
+     * there are, they get the share of the CPU it would have alone. Only
+     * schedulers that issue tickets in currencies use it.
+     *
+     * @return this thread.
+     * @see nachos.threads.Scheduler#newCurrency
+     */
+    public KThread newCurrency() {
+        Lib.assertTrue(status == statusNew);
+
+        ownCurrency = true;
+        return this;
+    }
+
     /**
      * Deterministically and consistently compare this thread to another
      * thread.
@@ -149,6 +207,9 @@ public class KThread {
             }
         });
 
+        if (ownCurrency)
+            ThreadedKernel.scheduler.newCurrency(this);
+
         ready();
 
         Machine.interrupt().restore(intStatus);
@@ -187,6 +248,9 @@ public class KThread {
 
         Machine.autoGrader().finishingCurrentThread();
 
+        // give back any CPU reservation
+        ThreadedKernel.scheduler.setPeriod(currentThread, 0, 0);
+
         Lib.assertTrue(toBeDestroyed == null);
         toBeDestroyed = currentThread;
 
@@ -268,12 +332,53 @@ public class KThread {
         Lib.assertTrue(status != statusReady);
 
         status = statusReady;
-        if (this != idleThread)
+        if (this != idleThread) {
             readyQueue.waitForAccess(this);
+            numReady++;
+        }
 
         Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Decide whether a timer interrupt should preempt the current thread.
+     * It should if the thread has run for at least its quantum (as given by
+     * <tt>Scheduler.getQuantum()</tt>) since it was last dispatched, and
+     * another thread is ready to run. If the quantum is not positive, every
+     * timer interrupt preempts the current thread, whether or not another
+     * thread is ready.
+     *
+     * @return <tt>true</tt> if the current thread should yield.
+     */
+    public static boolean quantumExpired() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        long quantum = ThreadedKernel.scheduler.getQuantum(currentThread);
+        if (quantum <= 0)
+            return true;
+
+        return numReady > 0 &&
+                Machine.timer().getTime() - currentThread.sliceStart >= quantum;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent running, including
+     * the current time slice if it is running now.
+     *
+     * @return the number of ticks this thread has run.
+     */
+    public long getRunTime() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        long time = runTime;
+        if (this == currentThread)
+            time += Machine.timer().getTime() - sliceStart;
+
+        Machine.interrupt().restore(intStatus);
+
+        return time;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -324,8 +429,14 @@ public class KThread {
      */
     private static void runNextThread() {
         KThread nextThread = readyQueue.nextThread();
-        if (nextThread == null)
+        if (nextThread == null) {
+            // nothing can run until an interrupt arrives, so skip the idle
+            // thread's ticks up to that point instead of spinning through them
+            Machine.interrupt().skipIdleTicks();
             nextThread = idleThread;
+        } else {
+            numReady--;
+        }
 
         nextThread.run();
     }
@@ -381,6 +492,7 @@ public class KThread {
         Machine.autoGrader().runningThread(this);
 
         status = statusRunning;
+        sliceStart = Machine.timer().getTime();
 
         if (toBeDestroyed != null) {
             toBeDestroyed.tcb.destroy();
@@ -396,6 +508,8 @@ public class KThread {
     protected void saveState() {
         Lib.assertTrue(Machine.interrupt().disabled());
         Lib.assertTrue(this == currentThread);
+
+        runTime += Machine.timer().getTime() - sliceStart;
     }
 
     private static class PingTest implements Runnable {
@@ -493,6 +607,14 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    private boolean ownCurrency = false;
+
+    /**
+     * The time at which this thread was last dispatched, and the number of
+     * ticks it ran in the time slices before that.
+     */
+    private long sliceStart = 0;
+    private long runTime = 0;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -505,6 +627,10 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /**
+     * The number of threads on the ready queue, not counting the idle thread.
+     */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
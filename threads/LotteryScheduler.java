@@ -23,22 +23,34 @@ import java.util.*;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ * <p>
+ * <p>
+ * Tickets are issued in currencies. A thread's priority is the number of
+ * tickets it holds in its currency, and each currency is funded with a number
+ * of tickets of its parent currency, down to the base currency. The tickets a
+ * currency issues to its waiting threads share the value of its funding, so
+ * a group of threads with a currency of its own gets the same share of the
+ * CPU however many threads it has and whatever their priorities add up to.
+ * A new thread is in the currency of the thread that forked it. Tickets
+ * transferred to a thread stay in the currency they were issued in, so
+ * waiting on a thread of another group does not inflate that group's
+ * currency.
  */
 
 public class LotteryScheduler extends Scheduler {
     /**
-     * Allocate a new priority scheduler.
+     * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
     }
 
     /**
-     * Allocate a new priority thread queue.
+     * Allocate a new lottery thread queue.
      *
      * @param transferPriority <tt>true</tt> if this queue should
-     *                         transfer priority from waiting threads
+     *                         transfer tickets from waiting threads
      *                         to the owning thread.
-     * @return a new priority thread queue.
+     * @return a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
         return new PriorityQueue(transferPriority);
@@ -66,6 +78,19 @@ public class LotteryScheduler extends Scheduler {
         getThreadState(thread).setPriority(priority);
     }
 
+    /**
+     * Give the thread a currency of its own, funded with as many tickets of
+     * its old currency as its priority, in which it holds the same number of
+     * tickets.
+     */
+    public void newCurrency(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        ThreadState threadState = getThreadState(thread);
+        threadState.setCurrency(new Currency(threadState.getCurrency(),
+                threadState.priority));
+    }
+
     public boolean increasePriority() {
         boolean intStatus = Machine.interrupt().disable();
 
@@ -123,7 +148,17 @@ public class LotteryScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * <p>
+     * <p>
+     * The tickets the waiting threads hold in each currency take part in a
+     * lottery of their own: a thread's tickets in its own currency, and the
+     * tickets transferred to it in each other currency. The lottery of a
+     * currency with tickets in it takes part in the lottery of its parent
+     * currency with the tickets that fund it, and the lottery of the base
+     * currency picks the winner, so no ticket is ever revalued. Tickets that
+     * change are moved to the end of their lottery, as if they had been
+     * removed and added again.
      */
     protected class PriorityQueue extends ThreadQueue {
         PriorityQueue(boolean transferPriority) {
@@ -137,11 +172,11 @@ public class LotteryScheduler extends Scheduler {
 //            threadState.updateTime();
             totalTicks += 1;
             threadState.startTime = totalTicks;
-            Lib.assertTrue(!queue.remove(threadState));
-            queue.add(threadState);
+            Lib.assertTrue(threadState.waitingFor == null);
+            threadState.getCurrency();
+            threadState.enter(this);
+            size++;
 
-            // must run after queue.add
-            // otherwise updateEffectivePriority can add it twice (first deletion fails)
             threadState.waitForAccess(this);
         }
 
@@ -162,12 +197,13 @@ public class LotteryScheduler extends Scheduler {
                 ownedThread = null;
             }
 
-            if (queue.isEmpty()) {
+            if (size == 0) {
                 return null;
             }
 //            Lib.assertTrue(false);
             ThreadState threadState = pickNextThread();
-            queue.remove(threadState);
+            threadState.leave(this);
+            size--;
             Lib.assertTrue(threadState.waitingFor == this);
             threadState.waitingFor = null;
 
@@ -187,26 +223,34 @@ public class LotteryScheduler extends Scheduler {
          */
         protected ThreadState pickNextThread() {
             // implement me
-            if (queue.isEmpty())
+            if (size == 0)
                 return null;
 
-            int totalTickets = 0;
-            for (ThreadState threadState : queue) {
-                totalTickets += threadState.getEffectivePriority();
-            }
-            int luckyTicket = Lib.random(totalTickets);
+            Entry winner = lottery;
+            while (winner instanceof Lottery)
+                winner = ((Lottery) winner).draw();
 
-            ThreadState luckyThreadState = null;
-            for (ThreadState threadState : queue) {
+            if (winner instanceof Donation)
+                return ((Donation) winner).threadState;
+            return (ThreadState) winner;
+        }
 
-                if (luckyTicket < threadState.getEffectivePriority()) {
-                    luckyThreadState = threadState;
-                    break;
-                }
-                luckyTicket -= threadState.getEffectivePriority();
-            }
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            threadState.leave(this);
+            size--;
+            threadState.waitingFor = null;
 
-            return luckyThreadState;
+            // its tickets are no longer transferred to the owner
+            if (ownedThread != null && transferPriority)
+                threadState.transfer(ownedThread, -1);
+
+            return true;
         }
 
         public void print() {
@@ -214,6 +258,91 @@ public class LotteryScheduler extends Scheduler {
             // implement me (if you want)
         }
 
+        /**
+         * Give the owner the tickets of each currency the waiting threads
+         * hold, or take them back.
+         *
+         * @param owner the thread to transfer the tickets to.
+         * @param sign  1 to give the tickets, or -1 to take them back.
+         */
+        void transfer(ThreadState owner, int sign) {
+            if (lottery.issued != 0)
+                owner.changeTickets(baseCurrency, sign * lottery.issued);
+            if (lotteries == null)
+                return;
+
+            for (Lottery currencyLottery : lotteries.values()) {
+                if (currencyLottery.issued != 0)
+                    owner.changeTickets(currencyLottery.currency, sign * currencyLottery.issued);
+            }
+        }
+
+        /**
+         * Add tickets to the end of the lottery of their currency, and add
+         * that lottery to its parent's if it was empty, and so on.
+         *
+         * @param entry    the thread or the donation that holds the tickets.
+         * @param currency the currency of the tickets.
+         */
+        void add(Entry entry, Currency currency) {
+            if (currency.parent == null) {
+                lottery.add(entry);
+                lottery.issued += entry.getTickets();
+                return;
+            }
+
+            long tickets = entry.getTickets();
+            for (; ; currency = currency.parent) {
+                Lottery currencyLottery = lottery;
+                if (currency.parent != null) {
+                    if (lotteries == null)
+                        lotteries = new LinkedHashMap<Currency, Lottery>();
+                    currencyLottery = lotteries.get(currency);
+                    if (currencyLottery == null) {
+                        currencyLottery = new Lottery(currency);
+                        lotteries.put(currency, currencyLottery);
+                    }
+                }
+
+                currencyLottery.add(entry);
+                currencyLottery.issued += tickets;
+                if (currencyLottery.size > 1 || currency.parent == null)
+                    break;
+                entry = currencyLottery;
+                // a lottery holds tickets of its parent, but issues none
+                tickets = 0;
+            }
+        }
+
+        /**
+         * Take tickets out of the lottery of their currency, and take that
+         * lottery out of its parent's if it is now empty, and so on.
+         *
+         * @param entry    the thread or the donation that holds the tickets.
+         * @param currency the currency of the tickets.
+         */
+        void unlink(Entry entry, Currency currency) {
+            if (currency.parent == null) {
+                lottery.unlink(entry);
+                lottery.issued -= entry.getTickets();
+                return;
+            }
+
+            long tickets = entry.getTickets();
+            for (; ; currency = currency.parent) {
+                Lottery currencyLottery =
+                        currency.parent == null ? lottery : lotteries.get(currency);
+
+                currencyLottery.unlink(entry);
+                currencyLottery.issued -= tickets;
+                if (currencyLottery.size > 0 || currency.parent == null)
+                    break;
+                lotteries.remove(currency);
+                entry = currencyLottery;
+                tickets = 0;
+            }
+        }
+
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
@@ -222,8 +351,203 @@ public class LotteryScheduler extends Scheduler {
         public ThreadState ownedThread = null;
 
         int totalTicks = 0;
-        public LinkedList<ThreadState> queue = new LinkedList<>();
 
+        /**
+         * The lottery of the base currency.
+         */
+        private Lottery lottery = new Lottery(baseCurrency);
+        /**
+         * The lotteries of the other currencies with tickets in them, made
+         * when there first are any.
+         */
+        private LinkedHashMap<Currency, Lottery> lotteries = null;
+        /**
+         * The number of waiting threads.
+         */
+        private int size = 0;
+    }
+
+    /**
+     * A currency, funded with tickets of its parent currency.
+     */
+    protected class Currency {
+        /**
+         * Allocate a new currency.
+         *
+         * @param parent  the currency that funds this one, or <tt>null</tt>
+         *                for the base currency.
+         * @param funding the tickets of <tt>parent</tt> that fund this one.
+         */
+        Currency(Currency parent, long funding) {
+            this.parent = parent;
+            this.funding = funding;
+        }
+
+        final Currency parent;
+        final long funding;
+    }
+
+    /**
+     * Something that holds tickets in a lottery: a thread, the tickets
+     * transferred to a thread in another currency, or the lottery of a
+     * currency.
+     */
+    protected abstract class Entry {
+        /**
+         * Return the tickets this entry holds.
+         */
+        abstract long getTickets();
+
+        /**
+         * The slot of the lottery this entry is in.
+         */
+        int slot;
+    }
+
+    /**
+     * The tickets of one currency transferred to a thread in another.
+     */
+    protected class Donation extends Entry {
+        Donation(ThreadState threadState, Currency currency) {
+            this.threadState = threadState;
+            this.currency = currency;
+        }
+
+        long getTickets() {
+            return tickets;
+        }
+
+        final ThreadState threadState;
+        final Currency currency;
+        long tickets = 0;
+    }
+
+    /**
+     * A lottery among entries that hold tickets of one currency. It holds
+     * the tickets that fund the currency in the lottery of its parent.
+     * <p>
+     * <p>
+     * The entries are kept in slots in the order they were added, with a
+     * Fenwick tree over the tickets of the slots, so that adding or removing
+     * an entry and drawing the winner all take logarithmic time. A removed
+     * entry leaves an empty slot, and the slots are compacted when they run
+     * out.
+     */
+    protected class Lottery extends Entry {
+        Lottery(Currency currency) {
+            this.currency = currency;
+        }
+
+        long getTickets() {
+            return currency.funding;
+        }
+
+        /**
+         * Draw a winner among the entries.
+         *
+         * @return the entry that holds the winning ticket.
+         */
+        Entry draw() {
+            // a currency's lottery with one entry has nothing to draw; the
+            // base lottery always draws, as it did before there were currencies
+            long luckyTicket = size == 1 && currency.parent != null ? 0 :
+                    Lib.random(totalTickets);
+
+            // find the first slot whose tickets, with those of the slots
+            // before it, exceed the lucky ticket
+            int slot = 0;
+            for (int step = slots.length; step > 0; step >>= 1) {
+                if (slot + step <= slots.length && tree[slot + step] <= luckyTicket) {
+                    slot += step;
+                    luckyTicket -= tree[slot];
+                }
+            }
+
+            return slots[slot];
+        }
+
+        /**
+         * Put an entry in a new slot at the end.
+         */
+        void add(Entry entry) {
+            if (used == slots.length)
+                compact();
+
+            entry.slot = used++;
+            slots[entry.slot] = entry;
+            addTickets(entry.slot, entry.getTickets());
+            size++;
+        }
+
+        /**
+         * Take an entry out of its slot.
+         */
+        void unlink(Entry entry) {
+            Lib.assertTrue(slots[entry.slot] == entry);
+
+            addTickets(entry.slot, -entry.getTickets());
+            slots[entry.slot] = null;
+            size--;
+
+            // the tree is all zeros again, so the slots can start over
+            if (size == 0)
+                used = 0;
+        }
+
+        private void addTickets(int slot, long tickets) {
+            for (int i = slot + 1; i <= slots.length; i += i & -i)
+                tree[i] += tickets;
+            totalTickets += tickets;
+        }
+
+        /**
+         * Move the entries to the first slots, in order, doubling the number
+         * of slots if more than half are in use.
+         */
+        private void compact() {
+            Entry[] oldSlots = slots;
+            int length = size > oldSlots.length / 2 ? oldSlots.length * 2 : oldSlots.length;
+
+            slots = new Entry[length];
+            tree = new long[length + 1];
+            used = 0;
+            for (Entry entry : oldSlots) {
+                if (entry != null) {
+                    entry.slot = used++;
+                    slots[entry.slot] = entry;
+                    tree[used] = entry.getTickets();
+                }
+            }
+
+            // build the tree in linear time
+            for (int i = 1; i <= length; i++) {
+                int parent = i + (i & -i);
+                if (parent <= length)
+                    tree[parent] += tree[i];
+            }
+        }
+
+        final Currency currency;
+
+        /**
+         * The entries in the order they were added, with empty slots where
+         * entries were removed. The number of slots is a power of two.
+         */
+        private Entry[] slots = new Entry[16];
+        /**
+         * A Fenwick tree over the tickets of the slots: <tt>tree[i]</tt> is
+         * the sum of the tickets of slots <tt>i - (i & -i)</tt> through
+         * <tt>i - 1</tt>.
+         */
+        private long[] tree = new long[slots.length + 1];
+        private int used = 0;
+        private int size = 0;
+        private long totalTickets = 0;
+        /**
+         * The tickets of this currency held by the entries, not counting the
+         * lotteries of the currencies it funds.
+         */
+        long issued = 0;
     }
 
     /**
@@ -233,7 +557,7 @@ public class LotteryScheduler extends Scheduler {
      *
      * @see nachos.threads.KThread#schedulingState
      */
-    protected class ThreadState {
+    protected class ThreadState extends Entry {
         /**
          * Allocate a new <tt>ThreadState</tt> object and associate it with the
          * specified thread.
@@ -245,7 +569,6 @@ public class LotteryScheduler extends Scheduler {
 
 //            updateTime();
             setPriority(priorityDefault);
-            updateEffectivePriority();
         }
 
 //        public void updateTime() {
@@ -262,87 +585,191 @@ public class LotteryScheduler extends Scheduler {
         }
 
         /**
-         * Return the effective priority of the associated thread.
+         * Return the effective priority of the associated thread. Donated
+         * tickets can add up to more than an <tt>int</tt> holds, in which
+         * case this is <tt>priorityMaximum</tt>.
          *
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-//            effectivePriority = priority;
-//            for (PriorityQueue queue : resourceList) {
-//                if (queue.transferPriority) {
-//                    Lib.assertTrue(queue.ownedThread == this);
-//                    for (ThreadState threadState : queue.queue) {
-//                        effectivePriority = Math.max(effectivePriority, threadState.getEffectivePriority());
-//                    }
-//                }
-//            }
-
-            return effectivePriority;
-        }
-
-        /**
-         * Update effective priority.
-         * Use `ownedThread` chain to update all.
-         */
-        int depth = 0;
-
-        public void updateEffectivePriority() {
-            depth += 1;
-            Lib.assertTrue(depth <= 1000);
-
-            if (!isUpdating) {
-                isUpdating = true;
-                boolean intStatus = Machine.interrupt().disable();
-
-                int oldSize = 0;
-                if (waitingFor != null)
-                    oldSize = waitingFor.queue.size();
-
-                /**
-                 * The effective priority may change, so first we need to delete it from the
-                 * priority queue and after computing its new effective priority, we add it
-                 * back to the priority queue again.
-                 */
-                if (waitingFor != null)
-                    Lib.assertTrue(waitingFor.queue.remove(this));
-
-                // Computing new effective priority
-                int oldEffectivePriority = effectivePriority;
-                effectivePriority = priority;
-                for (PriorityQueue queue : resourceList) {
-                    if (queue.transferPriority) {
-                        Lib.assertTrue(queue.ownedThread == this);
-                        for (ThreadState threadState : queue.queue) {
-                            effectivePriority += threadState.getEffectivePriority();
-                        }
-                    }
-                }
-//            isValid = true;
+            return (int) Math.min(tickets, priorityMaximum);
+        }
+
+        long getTickets() {
+            return tickets;
+        }
+
+        /**
+         * Return the currency of the associated thread. A thread that has
+         * not waited for anything yet takes the currency of the current
+         * thread, which is forking it.
+         *
+         * @return the currency of the associated thread.
+         */
+        public Currency getCurrency() {
+            if (currency == null)
+                chooseCurrency();
 
-                int newSize = 0;
-                if (waitingFor != null) {
-                    waitingFor.queue.add(this);
-                    newSize = waitingFor.queue.size();
+            return currency;
+        }
 
-                    // waitingFor.ownedThread may be null (ready queue)
-                    if (waitingFor.ownedThread != null && waitingFor.transferPriority &&
-                            oldEffectivePriority != effectivePriority) {
-                        Lib.assertTrue(waitingFor.ownedThread != this);
+        private void chooseCurrency() {
+            // the current thread may be scheduled by another scheduler
+            KThread currentThread = KThread.currentThread();
+            if (currentThread != thread &&
+                    currentThread.schedulingState instanceof ThreadState)
+                currency = ((ThreadState) currentThread.schedulingState).getCurrency();
+            else
+                currency = baseCurrency;
+
+            // tickets transferred to it in that currency are its own now; it
+            // is not waiting, so they are in no lottery
+            Donation donation = donations == null ? null : donations.remove(currency);
+            if (donation != null)
+                tickets += donation.tickets;
+        }
 
-                        // Note that current thread is donating priority to another priority.
-                        waitingFor.ownedThread.updateEffectivePriority();
-                    }
+        /**
+         * Move the associated thread to the specified currency. Its priority
+         * becomes tickets of the new currency, and the tickets transferred to
+         * it stay in the currencies they were issued in.
+         *
+         * @param currency the new currency.
+         */
+        public void setCurrency(Currency currency) {
+            Currency oldCurrency = getCurrency();
+            if (currency == oldCurrency)
+                return;
+
+            PriorityQueue queue = waitingFor;
+            if (queue != null)
+                leave(queue);
+
+            if (tickets != priority)
+                getDonation(oldCurrency).tickets += tickets - priority;
+            tickets = priority;
+
+            this.currency = currency;
+            Donation donation = donations == null ? null : donations.remove(currency);
+            if (donation != null)
+                tickets += donation.tickets;
+
+            if (queue != null) {
+                enter(queue);
+
+                // the priority is transferred in the new currency now
+                if (queue.ownedThread != null && queue.transferPriority) {
+                    queue.ownedThread.changeTickets(oldCurrency, -priority);
+                    queue.ownedThread.changeTickets(currency, priority);
+                }
+            }
+        }
+
+        /**
+         * Add tickets of the specified currency to this thread, and pass them
+         * on to the owner of the queue it waits on, and so on along the chain.
+         * Since a queue transfers the sum of its waiters' tickets in each
+         * currency, every thread on the chain changes by the same amount of
+         * the same currency.
+         *
+         * @param currency the currency of the tickets, or <tt>null</tt> for
+         *                 the thread's own.
+         * @param delta    the number of tickets to add, which may be negative.
+         */
+        public void changeTickets(Currency currency, long delta) {
+            ThreadState threadState = this;
+
+            while (true) {
+                PriorityQueue queue = threadState.waitingFor;
+
+                if (currency == null || currency == threadState.getCurrency()) {
+                    if (queue != null)
+                        queue.unlink(threadState, threadState.currency);
+                    threadState.tickets += delta;
+                    if (queue != null)
+                        queue.add(threadState, threadState.currency);
+                } else {
+                    Donation donation = threadState.getDonation(currency);
+                    if (queue != null && donation.tickets != 0)
+                        queue.unlink(donation, currency);
+                    donation.tickets += delta;
+                    if (donation.tickets == 0)
+                        threadState.donations.remove(currency);
+                    else if (queue != null)
+                        queue.add(donation, currency);
                 }
-                Lib.assertTrue(newSize == oldSize);
-                Machine.interrupt().restore(intStatus);
-                isUpdating = false;
+
+                // queue.ownedThread may be null (ready queue)
+                if (queue == null || queue.ownedThread == null || !queue.transferPriority)
+                    return;
+
+                if (currency == null)
+                    currency = threadState.currency;
+                threadState = queue.ownedThread;
+                Lib.assertTrue(threadState != this);
             }
-            depth -= 1;
+        }
+
+        /**
+         * Give the specified thread the tickets this thread holds in each
+         * currency, or take them back.
+         *
+         * @param owner the thread to transfer the tickets to.
+         * @param sign  1 to give the tickets, or -1 to take them back.
+         */
+        void transfer(ThreadState owner, int sign) {
+            owner.changeTickets(currency, sign * tickets);
+            if (donations == null)
+                return;
+            for (Donation donation : donations.values())
+                owner.changeTickets(donation.currency, sign * donation.tickets);
+        }
+
+        /**
+         * Put the tickets of this thread in the lotteries of the specified
+         * queue, which it is starting to wait on.
+         */
+        void enter(PriorityQueue queue) {
+            queue.add(this, currency);
+            if (donations == null)
+                return;
+            for (Donation donation : donations.values())
+                queue.add(donation, donation.currency);
+        }
+
+        /**
+         * Take the tickets of this thread out of the lotteries of the
+         * specified queue.
+         */
+        void leave(PriorityQueue queue) {
+            queue.unlink(this, currency);
+            if (donations == null)
+                return;
+            for (Donation donation : donations.values())
+                queue.unlink(donation, donation.currency);
+        }
+
+        /**
+         * Return the tickets of the specified currency transferred to this
+         * thread, adding none if there are none yet.
+         */
+        Donation getDonation(Currency currency) {
+            if (donations == null)
+                donations = new LinkedHashMap<Currency, Donation>();
+
+            Donation donation = donations.get(currency);
+            if (donation == null) {
+                donation = new Donation(this, currency);
+                donations.put(currency, donation);
+            }
+
+            return donation;
         }
 
         public void removeWaitingQueue(PriorityQueue waitQueue) {
             Lib.assertTrue(resourceList.remove(waitQueue));
-            updateEffectivePriority();
+            if (waitQueue.transferPriority)
+                waitQueue.transfer(this, -1);
         }
 
         /**
@@ -354,8 +781,9 @@ public class LotteryScheduler extends Scheduler {
             if (this.priority == priority)
                 return;
 
+            long delta = (long) priority - this.priority;
             this.priority = priority;
-            updateEffectivePriority();
+            changeTickets(null, delta);
         }
 
         /**
@@ -371,8 +799,8 @@ public class LotteryScheduler extends Scheduler {
          */
 
         public void waitForAccess(PriorityQueue waitQueue) {
-//            resourceList.add(waitQueue);
-            Lib.debug('P', "process " + thread.getName() + " waiting for access " + waitQueue.toString());
+            if (Lib.test('P'))
+                Lib.debug('P', "process " + thread.getName() + " waiting for access " + waitQueue.toString());
             Lib.assertTrue(waitingFor == null);
 
             // may happen, e.g., ready queue when yielding
@@ -385,22 +813,9 @@ public class LotteryScheduler extends Scheduler {
             // I'm waiting for some resource, thus I must donate my priority to the owner.
             waitingFor = waitQueue;
             if (waitingFor.ownedThread != null && waitingFor.transferPriority) // and then update its effective priority
-                waitingFor.ownedThread.updateEffectivePriority();
-//            setInvalid();
+                transfer(waitingFor.ownedThread, 1);
         }
 
-        /**
-         * Called when one of threads which donate to it changes its priority.
-         * We know which thread it's waiting for (waitingFor.ownedThread).
-         */
-//        public void setInvalid() {
-//            isValid = false;
-//
-//            if (waitingFor.transferPriority == true && waitingFor.ownedThread != null) {
-//                waitingFor.ownedThread.setInvalid();
-//            }
-//        }
-
         /**
          * Called when the associated thread has acquired access to whatever is
          * guarded by <tt>waitQueue</tt>. This can occur either as a result of
@@ -412,7 +827,8 @@ public class LotteryScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            Lib.debug('P', "process " + thread.getName() + " acquiring " + waitQueue.toString());
+            if (Lib.test('P'))
+                Lib.debug('P', "process " + thread.getName() + " acquiring " + waitQueue.toString());
 
             /**
              * The following assertion may not hold since:
@@ -430,14 +846,14 @@ public class LotteryScheduler extends Scheduler {
             resourceList.add(waitQueue); // I will own the queue soon
 //            waitQueue.ownedThread = this;
 
-            updateEffectivePriority();
-//            isValid = false;
+            if (waitQueue.transferPriority)
+                waitQueue.transfer(this, 1);
         }
 
         @Override
         public String toString() {
-            return String.format("Process %s [priority = %d, effective = %d, time = %d] ",
-                    thread.getName(), priority, effectivePriority, startTime);
+            return String.format("Process %s [priority = %d, tickets = %d, time = %d] ",
+                    thread.getName(), priority, tickets, startTime);
         }
 
         /**
@@ -448,12 +864,29 @@ public class LotteryScheduler extends Scheduler {
          * The priority of the associated thread.
          */
         protected int priority;
-        protected int effectivePriority = priorityMinimum;
-        protected boolean isValid; // do we need to update effective priority?
+        /**
+         * The priority of the associated thread plus the tickets transferred
+         * to it in its own currency.
+         */
+        protected long tickets = 0;
         protected PriorityQueue waitingFor = null;
         protected long startTime;
-        protected boolean isUpdating;
+        /**
+         * The currency the thread's tickets are in, or <tt>null</tt> if it
+         * has not been chosen yet.
+         */
+        protected Currency currency = null;
+        /**
+         * The tickets transferred to the thread in other currencies, made
+         * when there first are any.
+         */
+        protected LinkedHashMap<Currency, Donation> donations = null;
 
         protected LinkedList<PriorityQueue> resourceList = new LinkedList<>();
     }
+
+    /**
+     * The currency the others are funded by, in the end.
+     */
+    private Currency baseCurrency = new Currency(null, 0);
 }
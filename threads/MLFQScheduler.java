@@ -0,0 +1,455 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ * <p>
+ * <p>
+ * Each thread is at one of eight levels, which are its priority, and the next
+ * thread to be dequeued is always the thread at the highest level that has
+ * been waiting longest. A new thread starts at the top level. A thread that
+ * runs for a whole quantum of its level drops a level, and the quantum doubles
+ * with every level down, so CPU-bound threads sink and get long time slices.
+ * A thread that blocks and is woken rises a level, so threads that mostly wait
+ * for I/O stay near the top and are dispatched soon after they wake. A
+ * thread's time at a level is added up over all its time slices, so yielding
+ * just before the quantum runs out does not keep it up.
+ * <p>
+ * <p>
+ * To keep the threads that sink from starving, every thread is boosted back
+ * to the top level every <tt>MLFQScheduler.boostPeriod</tt> ticks, checked on
+ * each timer interrupt. The boost is done lazily: each queue moves its
+ * waiting threads to the top level the next time it is used, in time
+ * proportional to the number of levels.
+ * <p>
+ * <p>
+ * A thread at a lower level than a ready thread is preempted at the next
+ * timer interrupt, whatever is left of its quantum. Priority is not donated
+ * through locks and joins; the boost bounds how long a low-level lock holder
+ * can be kept waiting.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler. The quantum of the top level is
+     * <tt>MLFQScheduler.quantum</tt> ticks, and is doubled for every level
+     * below it.
+     */
+    public MLFQScheduler() {
+        int topQuantum = Config.getInteger("MLFQScheduler.quantum", 500);
+        quanta = new long[priorityMaximum + 1];
+        for (int level = priorityMinimum; level <= priorityMaximum; level++)
+            quanta[level] = (long) topQuantum << (priorityMaximum - level);
+
+        boostPeriod = Config.getInteger("MLFQScheduler.boostPeriod", 100000);
+        nextBoost = Machine.timer().getTime() + boostPeriod;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue. Priority is not transferred, whatever
+     * <tt>transferPriority</tt> says.
+     *
+     * @param transferPriority ignored.
+     * @return a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new LevelQueue();
+    }
+
+    /**
+     * Allocate the ready queue. Threads added to it by another thread have
+     * been woken, and rise a level.
+     *
+     * @return the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new LevelQueue();
+        return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getLevel();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getLevel();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        getThreadState(thread).setLevel(priority);
+    }
+
+    /**
+     * Return the quantum of the thread's level, or 0 if a thread at a higher
+     * level is ready, so that the thread is preempted right away.
+     */
+    public long getQuantum(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        int level = getThreadState(thread).getLevel();
+        if (readyQueue != null && readyQueue.maxLevel() > level)
+            return 0;
+
+        return quanta[level];
+    }
+
+    /**
+     * Boost every thread to the top level if the boost period has passed.
+     */
+    public void timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        long time = Machine.timer().getTime();
+        if (time >= nextBoost) {
+            Lib.debug(dbgMLFQ, "Boosting all threads at " + time);
+
+            epoch++;
+            nextBoost = time + boostPeriod;
+        }
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The bottom level. Do not change this value.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The top level. Do not change this value.
+     */
+    public static final int priorityMaximum = 7;
+
+    private static final char dbgMLFQ = 'q';
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each
+     * level, and a bitmap of the non-empty levels, so that every operation
+     * takes constant time.
+     */
+    protected class LevelQueue extends ThreadQueue {
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            Lib.assertTrue(threadState.waitingFor == null);
+            catchUp();
+
+            // the current thread is yielding or blocking; any other thread
+            // is being woken or forked
+            if (thread == KThread.currentThread())
+                threadState.charge();
+            else if (this == readyQueue)
+                threadState.wake();
+
+            add(threadState);
+            threadState.waitingFor = this;
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            catchUp();
+            if (nonEmpty == 0)
+                return null;
+
+            ThreadState threadState = heads[maxLevel()];
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            return threadState.thread;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            catchUp();
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            catchUp();
+            for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+                for (ThreadState threadState = heads[level]; threadState != null;
+                     threadState = threadState.next)
+                    System.out.print(threadState + " ");
+            }
+        }
+
+        /**
+         * Return the highest level of the waiting threads.
+         *
+         * @return the highest level, or -1 if no threads are waiting.
+         */
+        int maxLevel() {
+            catchUp();
+            return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+        }
+
+        /**
+         * If there has been a boost since this queue was last used, move all
+         * the waiting threads to the top level, keeping the threads that were
+         * higher ahead.
+         */
+        void catchUp() {
+            if (queueEpoch == epoch)
+                return;
+
+            queueEpoch = epoch;
+            for (int level = priorityMaximum - 1; level >= priorityMinimum; level--) {
+                if (heads[level] == null)
+                    continue;
+
+                if (tails[priorityMaximum] == null)
+                    heads[priorityMaximum] = heads[level];
+                else
+                    tails[priorityMaximum].next = heads[level];
+                heads[level].prev = tails[priorityMaximum];
+                tails[priorityMaximum] = tails[level];
+                heads[level] = tails[level] = null;
+            }
+
+            if (nonEmpty != 0)
+                nonEmpty = 1 << priorityMaximum;
+        }
+
+        /**
+         * Add a thread to the back of the list for its level.
+         */
+        void add(ThreadState threadState) {
+            int level = threadState.getLevel();
+
+            threadState.next = null;
+            threadState.prev = tails[level];
+            if (tails[level] == null)
+                heads[level] = threadState;
+            else
+                tails[level].next = threadState;
+            tails[level] = threadState;
+
+            nonEmpty |= 1 << level;
+        }
+
+        /**
+         * Take a thread out of the list for its level. The queue must have
+         * caught up with any boost.
+         */
+        void unlink(ThreadState threadState) {
+            int level = threadState.getLevel();
+
+            if (threadState.prev == null)
+                heads[level] = threadState.next;
+            else
+                threadState.prev.next = threadState.next;
+            if (threadState.next == null)
+                tails[level] = threadState.prev;
+            else
+                threadState.next.prev = threadState.prev;
+
+            if (heads[level] == null)
+                nonEmpty &= ~(1 << level);
+            threadState.prev = threadState.next = null;
+        }
+
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        private int nonEmpty = 0;
+        /**
+         * The boost this queue has caught up with.
+         */
+        private int queueEpoch = epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how long it has run at
+     * that level, and the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with the
+         * specified thread. The thread starts at the top level.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Return the level of the associated thread, moving it to the top
+         * level first if there has been a boost since it was last looked
+         * at. A waiting thread is at the top of its queue after the same
+         * boost, so the two stay in step.
+         *
+         * @return the level of the associated thread.
+         */
+        int getLevel() {
+            if (threadEpoch != epoch) {
+                threadEpoch = epoch;
+                level = priorityMaximum;
+                usedTime = 0;
+            }
+
+            return level;
+        }
+
+        /**
+         * Move the associated thread to the specified level, and to the back
+         * of that level in the queue it waits on.
+         *
+         * @param level the new level.
+         */
+        void setLevel(int level) {
+            if (waitingFor != null) {
+                waitingFor.catchUp();
+                waitingFor.unlink(this);
+            }
+
+            getLevel();
+            this.level = level;
+            usedTime = 0;
+
+            if (waitingFor != null)
+                waitingFor.add(this);
+        }
+
+        /**
+         * Charge the associated thread for the time it has run since it was
+         * last charged, and drop it a level if it has now used a whole
+         * quantum at its level. Called when it yields or blocks.
+         */
+        void charge() {
+            int level = getLevel();
+
+            long runTime = thread.getRunTime();
+            usedTime += runTime - chargedTime;
+            chargedTime = runTime;
+
+            if (level > priorityMinimum && usedTime >= quanta[level]) {
+                Lib.debug(dbgMLFQ, thread.toString() + " drops to level " + (level - 1));
+
+                this.level = level - 1;
+                usedTime = 0;
+            }
+        }
+
+        /**
+         * Raise the associated thread a level, since it has been woken.
+         */
+        void wake() {
+            int level = getLevel();
+
+            if (level < priorityMaximum) {
+                this.level = level + 1;
+                usedTime = 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Process %s [level = %d, used = %d] ",
+                    thread.getName(), level, usedTime);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        protected LevelQueue waitingFor = null;
+
+        private int level = priorityMaximum;
+        /**
+         * The ticks the thread has run at its level.
+         */
+        private long usedTime = 0;
+        /**
+         * The thread's run time when it was last charged.
+         */
+        private long chargedTime = 0;
+        private int threadEpoch = epoch;
+
+        ThreadState prev = null, next = null;
+    }
+
+    /**
+     * The quantum of each level, in ticks.
+     */
+    private long[] quanta;
+    private long boostPeriod;
+    private long nextBoost;
+    /**
+     * The number of boosts so far.
+     */
+    private int epoch = 0;
+    private LevelQueue readyQueue = null;
+}
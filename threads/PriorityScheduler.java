@@ -26,9 +26,16 @@ import java.util.*;
  */
 public class PriorityScheduler extends Scheduler {
     /**
-     * Allocate a new priority scheduler.
+     * Allocate a new priority scheduler. The quantum of each priority
+     * <i>p</i> can be set with <tt>PriorityScheduler.quantum</tt><i>p</i>,
+     * and defaults to <tt>Scheduler.quantum</tt>.
      */
     public PriorityScheduler() {
+        quanta = new int[priorityMaximum + 1];
+        for (int priority = priorityMinimum; priority <= priorityMaximum; priority++) {
+            quanta[priority] = Config.getInteger(
+                    "PriorityScheduler.quantum" + priority, quantum);
+        }
     }
 
     /**
@@ -65,6 +72,16 @@ public class PriorityScheduler extends Scheduler {
         getThreadState(thread).setPriority(priority);
     }
 
+    /**
+     * Return the quantum for the thread's effective priority, so that a
+     * thread running on donated priority gets the donor's time slice.
+     */
+    public long getQuantum(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return quanta[getThreadState(thread).getEffectivePriority()];
+    }
+
     public boolean increasePriority() {
         boolean intStatus = Machine.interrupt().disable();
 
@@ -108,6 +125,11 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;
 
+    /**
+     * The quantum of each priority, in ticks.
+     */
+    private int[] quanta;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -122,7 +144,17 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority, and threads of
+     * the same priority by the time they started waiting. There is a bucket
+     * for each priority, and a bitmap of the non-empty buckets.
+     * <p>
+     * A bucket has two parts. A FIFO list holds the threads that have had
+     * the same effective priority since they started waiting. A heap,
+     * ordered by start time, holds the threads that moved into the bucket
+     * when their effective priority changed. Adding a thread takes constant
+     * time, and so does taking the first thread unless it comes from a
+     * heap. Moving a thread to another bucket, and taking the first thread
+     * from a heap, take time logarithmic in the size of that heap.
      */
     protected class PriorityQueue extends ThreadQueue {
         PriorityQueue(boolean transferPriority) {
@@ -136,11 +168,11 @@ public class PriorityScheduler extends Scheduler {
 //            threadState.updateTime();
             totalTicks += 1;
             threadState.startTime = totalTicks;
-            Lib.assertTrue(!priorityQueue.remove(threadState));
-            priorityQueue.add(threadState);
+            Lib.assertTrue(threadState.waitingFor == null);
+            add(threadState);
 
-            // must run after queue.add
-            // otherwise updateEffectivePriority can add it twice (first deletion fails)
+            // must run after add(), since the owner's new effective priority
+            // is read from the buckets
             threadState.waitForAccess(this);
         }
 
@@ -161,11 +193,12 @@ public class PriorityScheduler extends Scheduler {
                 ownedThread = null;
             }
 
-            if (priorityQueue.isEmpty()) {
+            if (size == 0) {
                 return null;
             }
 //            Lib.assertTrue(false);
-            ThreadState threadState = priorityQueue.poll();
+            ThreadState threadState = pickNextThread();
+            unlink(threadState);
             Lib.assertTrue(threadState.waitingFor == this);
             threadState.waitingFor = null;
 
@@ -185,35 +218,162 @@ public class PriorityScheduler extends Scheduler {
          */
         protected ThreadState pickNextThread() {
             // implement me
-            if (priorityQueue.isEmpty())
+            if (size == 0)
                 return null;
-            return priorityQueue.peek();
+
+            int level = maxPriority();
+            ThreadState first = heads[level];
+            if (movedSize[level] > 0 && (first == null ||
+                    moved[level][0].startTime < first.startTime))
+                first = moved[level][0];
+            return first;
         }
 
-        public void print() {
-            Lib.assertTrue(Machine.interrupt().disabled());
-            // implement me (if you want)
+        /**
+         * Return the highest effective priority of the waiting threads.
+         *
+         * @return the highest effective priority, or -1 if no threads are
+         * waiting.
+         */
+        int maxPriority() {
+            return 31 - Integer.numberOfLeadingZeros(nonEmpty);
         }
 
-        class Comp implements Comparator<ThreadState> {
-            public int compare(ThreadState a, ThreadState b) {
-                int diff;
-                // None business of transferPriority
-//                if (transferPriority) {
-                diff = a.getEffectivePriority() - b.getEffectivePriority();
-//                } else {
-//                    diff = a.getPriority() - b.getPriority();
-//                }
-                if (diff != 0)
-                    return -diff;
-                Lib.assertTrue(a.startTime != b.startTime);
-
-                if (a.startTime > b.startTime)
-                    return 1;
-                if (a.startTime < b.startTime)
-                    return -1;
-                return 0;
+        /**
+         * Add a thread that has just started waiting to the back of the FIFO
+         * list for its effective priority.
+         */
+        void add(ThreadState threadState) {
+            int level = threadState.getEffectivePriority();
+
+            threadState.level = level;
+            threadState.next = null;
+            threadState.prev = tails[level];
+            if (tails[level] == null)
+                heads[level] = threadState;
+            else
+                tails[level].next = threadState;
+            tails[level] = threadState;
+
+            nonEmpty |= 1 << level;
+            size++;
+        }
+
+        /**
+         * Move a waiting thread to the heap for its new effective priority,
+         * where it is ordered by the time it started waiting.
+         */
+        void move(ThreadState threadState) {
+            unlink(threadState);
+
+            int level = threadState.getEffectivePriority();
+            if (moved[level] == null)
+                moved[level] = new ThreadState[4];
+            else if (movedSize[level] == moved[level].length)
+                moved[level] = Arrays.copyOf(moved[level], movedSize[level] * 2);
+
+            threadState.level = level;
+            siftUp(level, movedSize[level]++, threadState);
+
+            nonEmpty |= 1 << level;
+            size++;
+        }
+
+        /**
+         * Take a thread out of its bucket.
+         */
+        void unlink(ThreadState threadState) {
+            int level = threadState.level;
+
+            if (threadState.heapIndex >= 0) {
+                ThreadState[] heap = moved[level];
+                int index = threadState.heapIndex;
+                ThreadState last = heap[--movedSize[level]];
+                heap[movedSize[level]] = null;
+                if (last != threadState) {
+                    if (index > 0 &&
+                            last.startTime < heap[(index - 1) / 2].startTime)
+                        siftUp(level, index, last);
+                    else
+                        siftDown(level, index, last);
+                }
+                threadState.heapIndex = -1;
+            } else {
+                if (threadState.prev == null)
+                    heads[level] = threadState.next;
+                else
+                    threadState.prev.next = threadState.next;
+                if (threadState.next == null)
+                    tails[level] = threadState.prev;
+                else
+                    threadState.next.prev = threadState.prev;
+                threadState.prev = threadState.next = null;
             }
+
+            if (heads[level] == null && movedSize[level] == 0)
+                nonEmpty &= ~(1 << level);
+            size--;
+        }
+
+        /**
+         * Put a thread at the specified index of a heap, or above it if it
+         * started waiting before the threads there.
+         */
+        private void siftUp(int level, int index, ThreadState threadState) {
+            ThreadState[] heap = moved[level];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (heap[parent].startTime <= threadState.startTime)
+                    break;
+                heap[index] = heap[parent];
+                heap[index].heapIndex = index;
+                index = parent;
+            }
+            heap[index] = threadState;
+            threadState.heapIndex = index;
+        }
+
+        /**
+         * Put a thread at the specified index of a heap, or below it if it
+         * started waiting after the threads there.
+         */
+        private void siftDown(int level, int index, ThreadState threadState) {
+            ThreadState[] heap = moved[level];
+            int count = movedSize[level];
+            while (2 * index + 1 < count) {
+                int child = 2 * index + 1;
+                if (child + 1 < count &&
+                        heap[child + 1].startTime < heap[child].startTime)
+                    child++;
+                if (threadState.startTime <= heap[child].startTime)
+                    break;
+                heap[index] = heap[child];
+                heap[index].heapIndex = index;
+                index = child;
+            }
+            heap[index] = threadState;
+            threadState.heapIndex = index;
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            // it no longer donates to the owner
+            propagate(this);
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            // implement me (if you want)
         }
 
         /**
@@ -224,8 +384,55 @@ public class PriorityScheduler extends Scheduler {
         public ThreadState ownedThread = null;
 
         int totalTicks = 0;
-        public java.util.PriorityQueue<ThreadState> priorityQueue = new java.util.PriorityQueue<>(new Comp());
 
+        /**
+         * The first and last waiting thread of each priority, linked through
+         * <tt>ThreadState.next</tt> and <tt>ThreadState.prev</tt>.
+         */
+        private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+        private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+        /**
+         * For each priority, a binary heap ordered by <tt>startTime</tt> of
+         * the waiting threads that moved there, or <tt>null</tt> if none has.
+         */
+        private ThreadState[][] moved = new ThreadState[priorityMaximum + 1][];
+        private int[] movedSize = new int[priorityMaximum + 1];
+        /**
+         * Bit <i>p</i> is set if a thread of priority <i>p</i> is waiting.
+         */
+        private int nonEmpty = 0;
+        private int size = 0;
+        /**
+         * The priority this queue donates to its owner, as last counted in
+         * the owner's <tt>donations</tt>, or -1 if none.
+         */
+        int donation = -1;
+    }
+
+    /**
+     * Pass a change in the waiting threads of a queue on to its owner, and
+     * from there along the chain of queues the owners wait on. The chain is
+     * followed only while effective priorities change, so a change costs at
+     * most the length of the chain, however many threads wait.
+     *
+     * @param queue the queue whose waiting threads changed.
+     */
+    protected static void propagate(PriorityQueue queue) {
+        while (queue != null && queue.transferPriority &&
+                queue.ownedThread != null) {
+            int donation = queue.maxPriority();
+            if (donation == queue.donation)
+                return;
+
+            ThreadState owner = queue.ownedThread;
+            owner.removeDonation(queue.donation);
+            owner.addDonation(donation);
+            queue.donation = donation;
+
+            if (!owner.updateEffectivePriority())
+                return;
+            queue = owner.waitingFor;
+        }
     }
 
     /**
@@ -247,7 +454,6 @@ public class PriorityScheduler extends Scheduler {
 
 //            updateTime();
             setPriority(priorityDefault);
-            updateEffectivePriority();
         }
 
 //        public void updateTime() {
@@ -283,62 +489,50 @@ public class PriorityScheduler extends Scheduler {
         }
 
         /**
-         * Update effective priority.
-         * Use `ownedThread` chain to update all.
+         * Recompute the effective priority from the priority and the
+         * donations, and if it changed, move this thread to its new place in
+         * the queue it waits on. The caller passes the change on.
+         *
+         * @return <tt>true</tt> if the effective priority changed.
          */
-        int depth = 0;
-        public void updateEffectivePriority() {
-            depth += 1;
-            Lib.assertTrue(depth <= 1000);
-            boolean intStatus = Machine.interrupt().disable();
-
-            int oldSize = 0;
-            if (waitingFor != null)
-                oldSize = waitingFor.priorityQueue.size();
+        boolean updateEffectivePriority() {
+            int newEffectivePriority = Math.max(priority,
+                    31 - Integer.numberOfLeadingZeros(donors));
+            if (newEffectivePriority == effectivePriority)
+                return false;
 
-            /**
-             * The effective priority may change, so first we need to delete it from the
-             * priority queue and after computing its new effective priority, we add it
-             * back to the priority queue again.
-             */
-            if (waitingFor != null)
-                Lib.assertTrue(waitingFor.priorityQueue.remove(this));
-
-            // Computing new effective priority
-            int oldEffectivePriority = effectivePriority;
-            effectivePriority = priority;
-            for (PriorityQueue queue : resourceList) {
-                if (queue.transferPriority) {
-                    Lib.assertTrue(queue.ownedThread == this);
-                    for (ThreadState threadState : queue.priorityQueue) {
-                        effectivePriority = Math.max(effectivePriority, threadState.getEffectivePriority());
-                    }
-                }
-            }
-//            isValid = true;
-
-            int newSize = 0;
+            effectivePriority = newEffectivePriority;
             if (waitingFor != null) {
-                waitingFor.priorityQueue.add(this);
-                newSize = waitingFor.priorityQueue.size();
+                // move to the bucket for the new effective priority
+                waitingFor.move(this);
+            }
+            return true;
+        }
 
-                // waitingFor.ownedThread may be null (ready queue)
-                if (waitingFor.ownedThread != null && waitingFor.transferPriority &&
-                        oldEffectivePriority != effectivePriority) {
-                    Lib.assertTrue(waitingFor.ownedThread != this);
+        /**
+         * Count a queue donating the specified priority to this thread.
+         */
+        void addDonation(int donation) {
+            if (donation >= 0 && donations[donation]++ == 0)
+                donors |= 1 << donation;
+        }
 
-                    // Note that current thread is donating priority to another priority.
-                    waitingFor.ownedThread.updateEffectivePriority();
-                }
-            }
-            Lib.assertTrue(newSize == oldSize);
-            Machine.interrupt().restore(intStatus);
-            depth -= 1;
+        /**
+         * Stop counting a queue donating the specified priority to this
+         * thread.
+         */
+        void removeDonation(int donation) {
+            if (donation >= 0 && --donations[donation] == 0)
+                donors &= ~(1 << donation);
         }
 
         public void removeWaitingQueue(PriorityQueue waitQueue) {
             Lib.assertTrue(resourceList.remove(waitQueue));
-            updateEffectivePriority();
+
+            removeDonation(waitQueue.donation);
+            waitQueue.donation = -1;
+            if (updateEffectivePriority())
+                propagate(waitingFor);
         }
 
         /**
@@ -351,7 +545,8 @@ public class PriorityScheduler extends Scheduler {
                 return;
 
             this.priority = priority;
-            updateEffectivePriority();
+            if (updateEffectivePriority())
+                propagate(waitingFor);
         }
 
         /**
@@ -368,7 +563,8 @@ public class PriorityScheduler extends Scheduler {
 
         public void waitForAccess(PriorityQueue waitQueue) {
 //            resourceList.add(waitQueue);
-            Lib.debug('P', "process " + thread.getName() + " waiting for access " + waitQueue.toString());
+            if (Lib.test('P'))
+                Lib.debug('P', "process " + thread.getName() + " waiting for access " + waitQueue.toString());
             Lib.assertTrue(waitingFor == null);
 
             // may happen, e.g., ready queue when yielding
@@ -380,8 +576,7 @@ public class PriorityScheduler extends Scheduler {
 
             // I'm waiting for some resource, thus I must donate my priority to the owner.
             waitingFor = waitQueue;
-            if (waitingFor.ownedThread != null && waitingFor.transferPriority) // and then update its effective priority
-                waitingFor.ownedThread.updateEffectivePriority();
+            propagate(waitQueue); // and then update its effective priority
 //            setInvalid();
         }
 
@@ -408,7 +603,8 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            Lib.debug('P', "process " + thread.getName() + " acquiring " + waitQueue.toString());
+            if (Lib.test('P'))
+                Lib.debug('P', "process " + thread.getName() + " acquiring " + waitQueue.toString());
 
             /**
              * The following assertion may not hold since:
@@ -426,7 +622,8 @@ public class PriorityScheduler extends Scheduler {
             resourceList.add(waitQueue); // I will own the queue soon
 //            waitQueue.ownedThread = this;
 
-            updateEffectivePriority();
+            Lib.assertTrue(waitQueue.donation == -1);
+            propagate(waitQueue);
 //            isValid = false;
         }
         
@@ -449,7 +646,21 @@ public class PriorityScheduler extends Scheduler {
         protected PriorityQueue waitingFor = null;
         protected long startTime;
 
+        /**
+         * The bucket of <tt>waitingFor</tt> this thread is in, and either its
+         * neighbours in the FIFO list there or its index in the heap there.
+         */
+        int level;
+        ThreadState prev = null, next = null;
+        int heapIndex = -1;
+
         protected LinkedList<PriorityQueue> resourceList = new LinkedList<>();
+        /**
+         * The number of owned queues donating each priority, and a bitmap
+         * of the priorities donated by at least one.
+         */
+        private int[] donations = new int[priorityMaximum + 1];
+        private int donors = 0;
     }
 }
 
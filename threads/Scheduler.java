@@ -52,6 +52,21 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate a new thread queue for <tt>KThread</tt> to use as the ready
+     * queue. A scheduler that treats ready threads differently from threads
+     * waiting on a lock or a semaphore can tell its ready queue apart this
+     * way.
+     *
+     * <p>
+     * By default, this returns <tt>newThreadQueue(false)</tt>.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -131,6 +146,82 @@ public abstract class Scheduler {
 	setPriority(KThread.currentThread(), priority);
     }
 
+    /**
+     * Get the number of ticks the specified thread may run before a timer
+     * interrupt preempts it, if another thread is ready. If this is not
+     * positive, every timer interrupt makes the running thread yield. Must
+     * be called with interrupts disabled.
+     *
+     * <p>
+     * By default, every thread gets the quantum set by
+     * <tt>Scheduler.quantum</tt>, or 0 if it is not set.
+     *
+     * @param	thread	the thread to get the quantum of.
+     * @return	the thread's quantum, in ticks.
+     */
+    public long getQuantum(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return quantum;
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts
+     * disabled, before it asks whether the current thread's quantum has
+     * expired. By default, does nothing.
+     */
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Set the deadline of the specified thread, for schedulers that use
+     * deadlines. Must be called with interrupts disabled.
+     *
+     * <p>
+     * By default, deadlines are ignored.
+     *
+     * @param	thread		the thread to set the deadline of.
+     * @param	deadline	the time, in ticks, by which the thread should
+     *				have finished its work, or
+     *				<tt>Long.MAX_VALUE</tt> for no deadline.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+    }
+
+    /**
+     * Ask for the specified thread to be given <i>budget</i> ticks of CPU
+     * time in every <i>period</i> ticks, for schedulers that make such
+     * reservations. A period of 0 cancels the thread's reservation. Must be
+     * called with interrupts disabled.
+     *
+     * <p>
+     * By default, no reservation is ever made.
+     *
+     * @param	thread	the thread to make the reservation for.
+     * @param	period	the length of each period, in ticks.
+     * @param	budget	the CPU time needed in each period, in ticks, from
+     *			1 to <tt>period</tt>.
+     * @return	<tt>true</tt> if the reservation was made.
+     */
+    public boolean setPeriod(KThread thread, long period, long budget) {
+	return false;
+    }
+
+    /**
+     * Give the specified thread a currency of its own, for schedulers that
+     * issue tickets in currencies. The currency is funded with the thread's
+     * tickets in its old currency, and the threads it forks afterwards share
+     * it, so together they get no more of the CPU than it would alone. Called
+     * when a thread that asked for a currency is forked, with interrupts
+     * disabled.
+     *
+     * <p>
+     * By default, there are no currencies, and this does nothing.
+     *
+     * @param	thread	the thread to give a currency.
+     */
+    public void newCurrency(KThread thread) {
+    }
+
     /**
      * If possible, raise the priority of the current thread in some
      * scheduler-dependent way.
@@ -154,4 +245,9 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * The quantum returned by the default <tt>getQuantum()</tt>.
+     */
+    protected int quantum = Config.getInteger("Scheduler.quantum", 0);
 }
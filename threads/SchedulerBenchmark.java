@@ -0,0 +1,492 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.*;
+
+/**
+ * Measures how fast the thread queues of the current scheduler are with many
+ * waiting threads. The threads are never forked, since only their scheduling
+ * state is used, so there can be far more of them than <tt>TCB</tt> allows
+ * to run.
+ * <p>
+ * <p>
+ * One benchmark run enqueues the threads on a queue that transfers priority,
+ * changes the priority of every waiting thread, and then dequeues them all,
+ * printing the average time of each kind of operation. Another run builds a
+ * chain of threads, each waiting on a queue owned by the one before, and
+ * times changes to the priority of the last thread, which are donated along
+ * the whole chain.
+ * <p>
+ * <p>
+ * The proportional-share schedulers can also be compared with each other:
+ * threads with different numbers of tickets are dequeued and put back many
+ * times, and the number of times each was dequeued is compared with its share
+ * of the tickets.
+ * <p>
+ * <p>
+ * Finally, the response time of the kernel's scheduler can be measured with
+ * real threads: CPU-bound threads run next to a thread that sleeps and wakes
+ * up over and over, like a thread waiting for console input next to a
+ * compute-bound program. And the shares of the CPU that such threads get, at
+ * different priorities, can be compared, as can the deadlines that periodic
+ * threads miss when they run next to CPU-bound threads.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Run the benchmark with the specified number of waiting threads.
+     *
+     * @param numThreads the number of threads to wait on the queue.
+     */
+    public static void run(int numThreads) {
+        KThread[] threads = new KThread[numThreads];
+        for (int i = 0; i < numThreads; i++)
+            threads[i] = new KThread().setName("benchmark " + i);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < numThreads; i++)
+            ThreadedKernel.scheduler.setPriority(threads[i], 1 + i % 7);
+
+        ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(true);
+        queue.acquire(KThread.currentThread());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numThreads; i++)
+            queue.waitForAccess(threads[i]);
+        long enqueued = System.nanoTime();
+
+        for (int i = 0; i < numThreads; i++)
+            ThreadedKernel.scheduler.setPriority(threads[i], 1 + (i * 3) % 7);
+        long reprioritized = System.nanoTime();
+
+        for (int i = 0; i < numThreads; i++)
+            Lib.assertTrue(queue.nextThread() != null);
+        Lib.assertTrue(queue.nextThread() == null);
+        long dequeued = System.nanoTime();
+
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " with " + numThreads + " threads: enqueue "
+                + (enqueued - start) / numThreads + "ns, reprioritize "
+                + (reprioritized - enqueued) / numThreads + "ns, dequeue "
+                + (dequeued - reprioritized) / numThreads + "ns");
+    }
+
+    /**
+     * Time priority changes donated along a chain of waiting threads.
+     *
+     * @param length the number of queues in the chain.
+     */
+    public static void runChain(int length) {
+        KThread[] threads = new KThread[length + 1];
+        for (int i = 0; i <= length; i++)
+            threads[i] = new KThread().setName("chain " + i);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        for (int i = 0; i < length; i++) {
+            ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(true);
+            queue.acquire(threads[i]);
+            queue.waitForAccess(threads[i + 1]);
+        }
+
+        int firstPriority =
+                ThreadedKernel.scheduler.getEffectivePriority(threads[0]);
+
+        int numChanges = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 10; round++) {
+            for (int priority = 2; priority <= 7; priority++, numChanges++)
+                ThreadedKernel.scheduler.setPriority(threads[length], priority);
+            for (int priority = 6; priority >= 1; priority--, numChanges++)
+                ThreadedKernel.scheduler.setPriority(threads[length], priority);
+        }
+        long changed = System.nanoTime();
+
+        // the last thread is back to priority 1, so the first must be too
+        Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(threads[0])
+                == firstPriority);
+
+        Machine.interrupt().restore(intStatus);
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " with a chain of " + length + " queues: priority change "
+                + (changed - start) / numChanges + "ns");
+    }
+
+    /**
+     * Dequeue and put back threads with 1 to <tt>numThreads</tt> tickets,
+     * and print how far each thread's number of dequeues is from its share,
+     * and the average time to dequeue and put back a thread. The scheduler
+     * need not be the kernel's.
+     *
+     * @param scheduler     the scheduler to measure.
+     * @param numThreads    the number of threads.
+     * @param numDispatches the number of times to dequeue a thread.
+     */
+    public static void runShare(Scheduler scheduler, int numThreads,
+                                int numDispatches) {
+        KThread[] threads = new KThread[numThreads];
+        Map<KThread, Integer> indices = new HashMap<KThread, Integer>();
+        long totalTickets = 0;
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        ThreadQueue queue = scheduler.newThreadQueue(false);
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new KThread().setName("share " + i);
+            // never forked, so the kernel scheduler's state can be dropped
+            threads[i].schedulingState = null;
+            indices.put(threads[i], i);
+
+            scheduler.setPriority(threads[i], i + 1);
+            totalTickets += i + 1;
+            queue.waitForAccess(threads[i]);
+        }
+
+        KThread[] dispatched = new KThread[numDispatches];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numDispatches; i++) {
+            dispatched[i] = queue.nextThread();
+            queue.waitForAccess(dispatched[i]);
+        }
+        long finish = System.nanoTime();
+
+        Machine.interrupt().restore(intStatus);
+
+        int[] counts = new int[numThreads];
+        for (KThread thread : dispatched)
+            counts[indices.get(thread)]++;
+
+        double maxError = 0, totalError = 0;
+        for (int i = 0; i < numThreads; i++) {
+            double error = Math.abs(counts[i] -
+                    (double) numDispatches * (i + 1) / totalTickets);
+            maxError = Math.max(maxError, error);
+            totalError += error;
+        }
+
+        System.out.println(scheduler.getClass().getName() + " with "
+                + numThreads + " threads, " + numDispatches
+                + " dispatches: share error max "
+                + String.format("%.1f", maxError) + ", mean "
+                + String.format("%.1f", totalError / numThreads)
+                + " dispatches, " + (finish - start) / numDispatches
+                + "ns per dispatch");
+    }
+
+    /**
+     * Compare the share error and dispatch cost of the lottery and stride
+     * schedulers, with few threads and with many.
+     */
+    public static void shareTest() {
+        Scheduler[] schedulers = {new LotteryScheduler(), new StrideScheduler()};
+
+        // warm up the JIT compiler
+        for (Scheduler scheduler : schedulers)
+            runShare(scheduler, 1000, 100000);
+
+        for (Scheduler scheduler : schedulers)
+            runShare(scheduler, 10, 100000);
+        for (Scheduler scheduler : schedulers)
+            runShare(scheduler, 10000, 1000000);
+    }
+
+    /**
+     * Fork CPU-bound threads, and a thread that sleeps for 2000 ticks and
+     * then runs briefly, over and over, and print how long that thread waits
+     * for the CPU after each time its sleep ends.
+     *
+     * @param numBatch   the number of CPU-bound threads.
+     * @param numWakeups the number of times the sleeping thread wakes up.
+     */
+    public static void responseTest(int numBatch, final int numWakeups) {
+        final long[] latency = new long[2];
+        batchDone = false;
+
+        KThread[] batch = new KThread[numBatch];
+        for (int i = 0; i < numBatch; i++) {
+            batch[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (!batchDone)
+                        burn(100);
+                }
+            }).setName("batch " + i);
+            batch[i].fork();
+        }
+
+        KThread interactive = new KThread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < numWakeups; i++) {
+                    long wakeTime = Machine.timer().getTime() + 2000;
+                    ThreadedKernel.alarm.waitUntil(2000);
+
+                    long waited = Machine.timer().getTime() - wakeTime;
+                    latency[0] += waited;
+                    latency[1] = Math.max(latency[1], waited);
+
+                    burn(100);
+                }
+            }
+        }).setName("interactive");
+        interactive.fork();
+
+        interactive.join();
+        batchDone = true;
+        for (int i = 0; i < numBatch; i++)
+            batch[i].join();
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " with " + numBatch + " CPU-bound threads: response time mean "
+                + latency[0] / numWakeups + ", max " + latency[1] + " ticks");
+    }
+
+    /**
+     * Fork CPU-bound threads at priorities 1, 1, 2 and 3, and a thread that
+     * sleeps for 1000 ticks and then runs for 500, over and over, and print
+     * the share of the CPU each gets.
+     *
+     * @param duration the number of ticks to run the threads for.
+     */
+    public static void fairnessTest(long duration) {
+        final long endTime = Machine.timer().getTime() + duration;
+        int[] priorities = {1, 1, 2, 3};
+        // joining the threads would transfer this thread's tickets to one
+        final Semaphore done = new Semaphore(0);
+
+        KThread[] threads = new KThread[priorities.length + 1];
+        for (int i = 0; i < priorities.length; i++) {
+            threads[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (Machine.timer().getTime() < endTime)
+                        burn(100);
+                    done.V();
+                }
+            }).setName("priority " + priorities[i]);
+        }
+        threads[priorities.length] = new KThread(new Runnable() {
+            public void run() {
+                while (Machine.timer().getTime() < endTime) {
+                    ThreadedKernel.alarm.waitUntil(1000);
+                    burn(500);
+                }
+                done.V();
+            }
+        }).setName("sleeper");
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (int i = 0; i < priorities.length; i++)
+            ThreadedKernel.scheduler.setPriority(threads[i], priorities[i]);
+        Machine.interrupt().restore(intStatus);
+
+        for (KThread thread : threads)
+            thread.fork();
+        for (KThread thread : threads)
+            done.P();
+
+        String shares = "";
+        for (KThread thread : threads) {
+            shares += ", " + thread.getName() + " "
+                    + thread.getRunTime() * 100 / duration + "%";
+        }
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " CPU shares" + shares.substring(1));
+    }
+
+    /**
+     * Fork threads that each ask for 1200 ticks in every 3000 and use 1000
+     * of them, next to CPU-bound threads, and print how many of the periodic
+     * threads' reservations were made and how many deadlines the threads
+     * with and without a reservation missed. Then have a thread with a
+     * deadline wait on a lock held by a thread without one, while the
+     * CPU-bound threads run, and print whether it met its deadline.
+     *
+     * @param numPeriodic the number of periodic threads.
+     * @param numBatch    the number of CPU-bound threads.
+     * @param numPeriods  the number of periods each periodic thread runs for.
+     */
+    public static void deadlineTest(int numPeriodic, int numBatch,
+                                    final int numPeriods) {
+        final int period = 3000;
+        final int[] counts = new int[3];
+        batchDone = false;
+
+        KThread[] batch = new KThread[numBatch];
+        for (int i = 0; i < numBatch; i++) {
+            batch[i] = new KThread(new Runnable() {
+                public void run() {
+                    while (!batchDone)
+                        burn(100);
+                }
+            }).setName("batch " + i);
+            batch[i].fork();
+        }
+
+        KThread[] periodic = new KThread[numPeriodic];
+        for (int i = 0; i < numPeriodic; i++) {
+            periodic[i] = new KThread(new Runnable() {
+                public void run() {
+                    boolean reserved =
+                            KThread.currentThread().setPeriod(period, 1200);
+                    if (reserved)
+                        counts[0]++;
+
+                    long release = Machine.timer().getTime();
+                    for (int j = 0; j < numPeriods; j++) {
+                        burn(1000);
+                        if (Machine.timer().getTime() > release + period)
+                            counts[reserved ? 1 : 2]++;
+
+                        release += period;
+                        long now = Machine.timer().getTime();
+                        if (now < release)
+                            ThreadedKernel.alarm.waitUntil(release - now);
+                    }
+                }
+            }).setName("periodic " + i);
+            periodic[i].fork();
+        }
+
+        for (int i = 0; i < numPeriodic; i++)
+            periodic[i].join();
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " with " + numBatch + " CPU-bound threads: " + counts[0]
+                + " of " + numPeriodic + " reservations made, deadlines missed "
+                + counts[1] + " of " + counts[0] * numPeriods + " with and "
+                + counts[2] + " of " + (numPeriodic - counts[0]) * numPeriods
+                + " without");
+
+        final Lock lock = new Lock();
+        final long[] finished = new long[1];
+
+        KThread holder = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                KThread.yield();
+                burn(1000);
+                lock.release();
+            }
+        }).setName("lock holder");
+        holder.fork();
+        KThread.yield();
+
+        final long deadline = Machine.timer().getTime() + 4000;
+        KThread urgent = new KThread(new Runnable() {
+            public void run() {
+                KThread.currentThread().setDeadline(4000);
+                lock.acquire();
+                burn(500);
+                lock.release();
+                finished[0] = Machine.timer().getTime();
+            }
+        }).setName("urgent");
+        urgent.fork();
+
+        holder.join();
+        urgent.join();
+
+        System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                + " with " + numBatch + " CPU-bound threads: lock waiter "
+                + (finished[0] <= deadline ? "met" : "missed")
+                + " its deadline by " + Math.abs(deadline - finished[0])
+                + " ticks");
+
+        batchDone = true;
+        for (int i = 0; i < numBatch; i++)
+            batch[i].join();
+    }
+
+    /**
+     * Run two groups of CPU-bound threads, each forked by a thread of its
+     * own: one with a single thread, and one with many threads at a raised
+     * priority. Print the share of the CPU that each group got, first with
+     * the threads' tickets all in one currency, and then with each group's
+     * threads in a currency of their own.
+     *
+     * @param numForked the number of threads in the larger group.
+     * @param duration  the number of ticks to run each time for.
+     */
+    public static void currencyTest(final int numForked, final long duration) {
+        for (int k = 0; k < 2; k++) {
+            final boolean currencies = k == 1;
+            final long endTime = Machine.timer().getTime() + duration;
+            final Runnable worker = new Runnable() {
+                public void run() {
+                    while (Machine.timer().getTime() < endTime)
+                        burn(100);
+                }
+            };
+
+            KThread[] groups = new KThread[2];
+            final long[] runTimes = new long[groups.length];
+            // joining the groups would transfer this thread's tickets to one
+            final Semaphore done = new Semaphore(0);
+            for (int i = 0; i < groups.length; i++) {
+                final int group = i;
+                groups[i] = new KThread(new Runnable() {
+                    public void run() {
+                        int numThreads = group == 0 ? 1 : numForked;
+                        KThread[] threads = new KThread[numThreads];
+                        for (int j = 0; j < numThreads; j++) {
+                            threads[j] = new KThread(worker)
+                                    .setName("group " + group + " thread " + j);
+                            if (group == 1) {
+                                boolean intStatus = Machine.interrupt().disable();
+                                ThreadedKernel.scheduler.setPriority(threads[j], 5);
+                                Machine.interrupt().restore(intStatus);
+                            }
+                            threads[j].fork();
+                        }
+
+                        for (int j = 0; j < numThreads; j++) {
+                            threads[j].join();
+                            runTimes[group] += threads[j].getRunTime();
+                        }
+                        done.V();
+                    }
+                }).setName("group " + i);
+                if (currencies)
+                    groups[i].newCurrency();
+            }
+
+            for (KThread thread : groups)
+                thread.fork();
+            for (KThread thread : groups)
+                done.P();
+
+            System.out.println(ThreadedKernel.scheduler.getClass().getName()
+                    + (currencies ? " with" : " without") + " currencies, CPU shares: "
+                    + "1 thread " + runTimes[0] * 100 / duration + "%, "
+                    + numForked + " threads " + runTimes[1] * 100 / duration + "%");
+        }
+    }
+
+    /**
+     * Run in the kernel for about the specified number of ticks.
+     */
+    private static void burn(int ticks) {
+        for (int i = 0; i < ticks; i += Stats.KernelTick) {
+            Machine.interrupt().disable();
+            Machine.interrupt().enable();
+        }
+    }
+
+    private static boolean batchDone;
+
+    /**
+     * Run the benchmark with 10,000 and 100,000 waiting threads and with a
+     * chain of 900 queues, after smaller runs to warm up the JIT compiler.
+     */
+    public static void selfTest() {
+        run(1000);
+        run(10000);
+        run(100000);
+        runChain(100);
+        runChain(900);
+    }
+}
@@ -47,6 +47,34 @@ public class Semaphore {
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>x</i> ticks for this semaphore to become
+     * non-zero, and decrement it if it does. If <i>x</i> is not positive,
+     * do not wait at all.
+     *
+     * @param x the maximum number of clock ticks to wait.
+     * @return <tt>true</tt> if the semaphore was decremented, or
+     * <tt>false</tt> if the time ran out.
+     */
+    public boolean tryP(long x) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean decremented = true;
+        if (value > 0) {
+            value--;
+        } else if (x <= 0) {
+            decremented = false;
+        } else {
+            // V() hands its increment straight to the thread it wakes
+            waitQueue.waitForAccess(KThread.currentThread());
+            decremented = ThreadedKernel.alarm.sleepOn(waitQueue, x);
+        }
+
+        Machine.interrupt().restore(intStatus);
+
+        return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -100,6 +128,11 @@ public class Semaphore {
             pong.P();
             Lib.debug('S', "> <<<>>> " + Integer.toString(i));
         }
+
+        Lib.assertTrue(!ping.tryP(0));
+        Lib.assertTrue(!ping.tryP(1000));
+        ping.V();
+        Lib.assertTrue(ping.tryP(1000));
     }
 
     private int value;
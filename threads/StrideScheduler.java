@@ -0,0 +1,567 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.*;
+
+/**
+ * A scheduler that gives threads shares of the CPU in proportion to their
+ * tickets, like a lottery scheduler, but deterministically.
+ * <p>
+ * <p>
+ * Each thread has a <i>stride</i> inversely proportional to its tickets and a
+ * <i>pass</i>. The next thread to run is always the ready thread with the
+ * lowest pass, and running advances its pass by its stride for every
+ * <tt>Stats.TimerTicks</tt> ticks it runs, charged at each timer interrupt
+ * and whenever it yields or blocks. So a thread with twice the tickets runs
+ * twice as long, and each thread's share is off by less than one time slice,
+ * where a lottery's error grows with the square root of the number of draws.
+ * A thread that has been blocked starts again no further back than the pass
+ * of the thread last dispatched, so it cannot catch up on the time it was
+ * away.
+ * <p>
+ * <p>
+ * The passes are only compared on the ready queue. On any other queue, a
+ * waiting thread's turn comes a stride after the turn of the thread last
+ * dequeued from that queue when it started waiting, so a thread with twice
+ * the tickets gets a resource twice as often, and its pass is not charged.
+ * <p>
+ * <p>
+ * Tickets are transferred through locks and joins the same way as in a
+ * lottery scheduler: a thread's tickets are its priority plus the tickets of
+ * all the threads waiting on queues it owns.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param transferPriority <tt>true</tt> if this queue should
+     *                         transfer tickets from waiting threads
+     *                         to the owning thread.
+     * @return a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+        return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getThreadState(thread).getEffectivePriority();
+    }
+
+    /**
+     * Allocate the ready queue, on which threads are charged for the time
+     * they run.
+     *
+     * @return the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+        Lib.assertTrue(readyQueue == null);
+
+        readyQueue = new StrideQueue(false);
+        return readyQueue;
+    }
+
+    /**
+     * Charge the current thread for the ticks it has run since it was last
+     * charged.
+     */
+    public void timerInterrupt() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        getThreadState(KThread.currentThread()).charge();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                priority <= priorityMaximum);
+
+        getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority + 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
+            return false;
+        }
+
+        setPriority(thread, priority - 1);
+
+        Machine.interrupt().restore(intStatus);
+        return true;
+    }
+
+    /**
+     * The default priority for a new thread. Do not change this value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have. Do not change this value.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. Large enough that strides stay
+     * distinct for billions of tickets, and small enough that a one-ticket
+     * thread can be dequeued billions of times before its pass overflows.
+     */
+    private static final long stride1 = 1L << 30;
+
+    private StrideQueue readyQueue = null;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param thread the thread whose scheduling state to return.
+     * @return the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+        if (thread.schedulingState == null)
+            thread.schedulingState = new ThreadState(thread);
+
+        return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread whose turn
+     * comes first, kept in a binary heap so that every operation takes
+     * logarithmic time. Threads whose turns are equal are dequeued in the
+     * order they were added.
+     */
+    protected class StrideQueue extends ThreadQueue {
+        StrideQueue(boolean transferPriority) {
+            this.transferPriority = transferPriority;
+        }
+
+        public void waitForAccess(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            Lib.assertTrue(threadState.waitingFor == null);
+
+            // the current thread is yielding or blocking
+            if (thread == KThread.currentThread())
+                threadState.charge();
+
+            if (this == readyQueue) {
+                // a thread that has been away must not catch up on the
+                // passes it missed, or it would run until it had
+                threadState.pass = Math.max(threadState.pass, virtualTime);
+                threadState.turn = threadState.pass;
+            } else {
+                threadState.turn = virtualTime + threadState.stride();
+            }
+            threadState.order = ++numAdded;
+            add(threadState);
+
+            threadState.waitForAccess(this);
+        }
+
+        public void acquire(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+            ownedThread = threadState;
+            threadState.acquire(this);
+        }
+
+        public KThread nextThread() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            if (ownedThread != null) {
+                ownedThread.removeWaitingQueue(this);
+                ownedThread = null;
+            }
+
+            if (size == 0)
+                return null;
+
+            ThreadState threadState = heap[0];
+            unlink(threadState);
+            Lib.assertTrue(threadState.waitingFor == this);
+            threadState.waitingFor = null;
+
+            virtualTime = threadState.turn;
+
+            ownedThread = threadState;
+            threadState.acquire(this);
+
+            return threadState.thread;
+        }
+
+        /**
+         * Return the next thread that <tt>nextThread()</tt> would return,
+         * without modifying the state of this queue.
+         *
+         * @return the next thread that <tt>nextThread()</tt> would
+         * return.
+         */
+        protected ThreadState pickNextThread() {
+            if (size == 0)
+                return null;
+
+            return heap[0];
+        }
+
+        public boolean remove(KThread thread) {
+            Lib.assertTrue(Machine.interrupt().disabled());
+            ThreadState threadState = getThreadState(thread);
+
+            if (threadState.waitingFor != this)
+                return false;
+
+            unlink(threadState);
+            threadState.waitingFor = null;
+
+            // its tickets are no longer transferred to the owner
+            if (ownedThread != null && transferPriority)
+                ownedThread.changeTickets(-threadState.tickets);
+
+            return true;
+        }
+
+        public void print() {
+            Lib.assertTrue(Machine.interrupt().disabled());
+
+            for (int i = 0; i < size; i++)
+                System.out.print(heap[i] + " ");
+        }
+
+        /**
+         * Add a thread to the heap.
+         */
+        void add(ThreadState threadState) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+
+            heap[size] = threadState;
+            threadState.index = size;
+            size++;
+            siftUp(threadState.index);
+
+            totalTickets += threadState.tickets;
+        }
+
+        /**
+         * Take a thread out of the heap.
+         */
+        void unlink(ThreadState threadState) {
+            int index = threadState.index;
+            Lib.assertTrue(heap[index] == threadState);
+
+            size--;
+            if (index != size) {
+                heap[index] = heap[size];
+                heap[index].index = index;
+                siftDown(index);
+                siftUp(index);
+            }
+            heap[size] = null;
+
+            totalTickets -= threadState.tickets;
+        }
+
+        private void siftUp(int index) {
+            ThreadState threadState = heap[index];
+
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!threadState.before(heap[parent]))
+                    break;
+
+                heap[index] = heap[parent];
+                heap[index].index = index;
+                index = parent;
+            }
+
+            heap[index] = threadState;
+            threadState.index = index;
+        }
+
+        private void siftDown(int index) {
+            ThreadState threadState = heap[index];
+
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1].before(heap[child]))
+                    child++;
+                if (!heap[child].before(threadState))
+                    break;
+
+                heap[index] = heap[child];
+                heap[index].index = index;
+                index = child;
+            }
+
+            heap[index] = threadState;
+            threadState.index = index;
+        }
+
+        /**
+         * <tt>true</tt> if this queue should transfer tickets from waiting
+         * threads to the owning thread.
+         */
+        public boolean transferPriority;
+        public ThreadState ownedThread = null;
+
+        /**
+         * The turn of the thread most recently dequeued.
+         */
+        long virtualTime = 0;
+        /**
+         * The tickets of all the waiting threads, which are transferred to
+         * the owner if <tt>transferPriority</tt> is set.
+         */
+        long totalTickets = 0;
+
+        private ThreadState[] heap = new ThreadState[16];
+        private int size = 0;
+        private long numAdded = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority, its tickets, its pass,
+     * the queues it owns, and the queue it's waiting for, if any.
+     *
+     * @see nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+        /**
+         * Allocate a new <tt>ThreadState</tt> object and associate it with the
+         * specified thread.
+         *
+         * @param thread the thread this state belongs to.
+         */
+        public ThreadState(KThread thread) {
+            this.thread = thread;
+
+            setPriority(priorityDefault);
+        }
+
+        /**
+         * Return the priority of the associated thread.
+         *
+         * @return the priority of the associated thread.
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Return the effective priority of the associated thread, which is
+         * its number of tickets, or <tt>priorityMaximum</tt> if that is
+         * more than an <tt>int</tt> holds.
+         *
+         * @return the effective priority of the associated thread.
+         */
+        public int getEffectivePriority() {
+            return (int) Math.min(tickets, priorityMaximum);
+        }
+
+        /**
+         * Set the priority of the associated thread to the specified value.
+         *
+         * @param priority the new priority.
+         */
+        public void setPriority(int priority) {
+            if (this.priority == priority)
+                return;
+
+            long delta = (long) priority - this.priority;
+            this.priority = priority;
+            changeTickets(delta);
+        }
+
+        /**
+         * Return the amount by which being dequeued advances the pass.
+         */
+        long stride() {
+            return Math.max(1, stride1 / tickets);
+        }
+
+        /**
+         * Advance the pass of the associated thread by its stride for every
+         * <tt>Stats.TimerTicks</tt> ticks it has run since it was last
+         * charged.
+         */
+        void charge() {
+            long runTime = thread.getRunTime();
+            pass += stride() * (runTime - chargedTime) / Stats.TimerTicks;
+            chargedTime = runTime;
+        }
+
+        /**
+         * Return <tt>true</tt> if this thread should be dequeued before the
+         * specified thread.
+         */
+        boolean before(ThreadState threadState) {
+            if (turn != threadState.turn)
+                return turn < threadState.turn;
+            return order < threadState.order;
+        }
+
+        /**
+         * Add tickets to this thread, and pass them on to the owner of the
+         * queue it waits on, and so on along the chain. A waiting thread
+         * keeps the same fraction of its stride left to go until its turn.
+         *
+         * @param delta the number of tickets to add, which may be negative.
+         */
+        public void changeTickets(long delta) {
+            ThreadState threadState = this;
+
+            while (true) {
+                StrideQueue queue = threadState.waitingFor;
+                if (queue == null) {
+                    threadState.tickets += delta;
+                    return;
+                }
+
+                queue.unlink(threadState);
+                long remain = threadState.turn - queue.virtualTime;
+                long oldTickets = threadState.tickets;
+                threadState.tickets += delta;
+                if (remain > 0) {
+                    threadState.turn = queue.virtualTime +
+                            (long) ((double) remain * oldTickets / threadState.tickets);
+                    if (queue == readyQueue)
+                        threadState.pass = threadState.turn;
+                }
+                queue.add(threadState);
+
+                // queue.ownedThread may be null (ready queue)
+                if (queue.ownedThread == null || !queue.transferPriority)
+                    return;
+
+                threadState = queue.ownedThread;
+                Lib.assertTrue(threadState != this);
+            }
+        }
+
+        public void removeWaitingQueue(StrideQueue waitQueue) {
+            Lib.assertTrue(ownedQueues.remove(waitQueue));
+            if (waitQueue.transferPriority && waitQueue.totalTickets != 0)
+                changeTickets(-waitQueue.totalTickets);
+        }
+
+        /**
+         * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+         * the associated thread) is invoked on the specified queue.
+         *
+         * @param waitQueue the queue that the associated thread is
+         *                  now waiting on.
+         * @see nachos.threads.ThreadQueue#waitForAccess
+         */
+        public void waitForAccess(StrideQueue waitQueue) {
+            Lib.assertTrue(waitingFor == null);
+            Lib.assertTrue(waitQueue.ownedThread != this || !waitQueue.transferPriority);
+
+            // donate my tickets to the owner
+            waitingFor = waitQueue;
+            if (waitingFor.ownedThread != null && waitingFor.transferPriority)
+                waitingFor.ownedThread.changeTickets(tickets);
+        }
+
+        /**
+         * Called when the associated thread has acquired access to whatever is
+         * guarded by <tt>waitQueue</tt>, so the threads waiting there now
+         * donate their tickets to it.
+         *
+         * @see nachos.threads.ThreadQueue#acquire
+         * @see nachos.threads.ThreadQueue#nextThread
+         */
+        public void acquire(StrideQueue waitQueue) {
+            Lib.assertTrue(!ownedQueues.remove(waitQueue));
+            ownedQueues.add(waitQueue);
+
+            if (waitQueue.transferPriority && waitQueue.totalTickets != 0)
+                changeTickets(waitQueue.totalTickets);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Process %s [priority = %d, tickets = %d, pass = %d] ",
+                    thread.getName(), priority, tickets, pass);
+        }
+
+        /**
+         * The thread with which this object is associated.
+         */
+        protected KThread thread;
+        /**
+         * The priority of the associated thread.
+         */
+        protected int priority;
+        /**
+         * The priority of the associated thread plus the tickets transferred
+         * to it.
+         */
+        protected long tickets = 0;
+        /**
+         * The virtual time of the ready queue at which this thread is next
+         * due to run.
+         */
+        protected long pass = 0;
+        /**
+         * The virtual time of <tt>waitingFor</tt> at which this thread's turn
+         * comes, which on the ready queue is its pass.
+         */
+        protected long turn = 0;
+        protected StrideQueue waitingFor = null;
+
+        /**
+         * The position of this thread in the heap of <tt>waitingFor</tt>, and
+         * the order in which it was added there, to break ties.
+         */
+        int index;
+        long order;
+        /**
+         * The thread's run time when it was last charged.
+         */
+        private long chargedTime = 0;
+
+        protected LinkedList<StrideQueue> ownedQueues = new LinkedList<>();
+    }
+}
@@ -15,7 +15,7 @@ public class SynchList {
     public SynchList() {
         list = new LinkedList<Object>();
         lock = new Lock();
-        listEmpty = new Condition(lock);
+        listEmpty = new Condition2(lock);
     }
 
     /**
@@ -51,6 +51,32 @@ public class SynchList {
         return o;
     }
 
+    /**
+     * Remove an object from the front of the queue, blocking for at most
+     * <i>x</i> ticks until the queue is non-empty if necessary.
+     *
+     * @param x the maximum number of clock ticks to wait.
+     * @return the element removed from the front of the queue, or
+     * <tt>null</tt> if the queue was still empty when the time ran out.
+     */
+    public Object removeFirst(long x) {
+        Object o = null;
+
+        lock.acquire();
+        long deadline = Machine.timer().getTime() + x;
+        while (list.isEmpty()) {
+            long remaining = deadline - Machine.timer().getTime();
+            if (remaining <= 0)
+                break;
+            listEmpty.sleepFor(remaining);
+        }
+        if (!list.isEmpty())
+            o = list.removeFirst();
+        lock.release();
+
+        return o;
+    }
+
     private static class PingTest implements Runnable {
         PingTest(SynchList ping, SynchList pong) {
             this.ping = ping;
@@ -80,10 +106,12 @@ public class SynchList {
             ping.add(o);
             Lib.assertTrue(pong.removeFirst() == o);
         }
+
+        Lib.assertTrue(pong.removeFirst(1000) == null);
     }
 
     private LinkedList<Object> list;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
 }
 
@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import nachos.machine.*;
+
 /**
  * Schedules access to some sort of resource with limited access constraints. A
  * thread queue can be used to share this limited access among multiple
@@ -91,6 +93,30 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Remove the specified thread from this queue, if it is waiting for
+     * access, so that it will not be returned by <tt>nextThread()</tt>. This
+     * is used to give up waiting, for example when a timed wait times out.
+     * The caller is responsible for waking the thread.
+     *
+     * <p>
+     * If the limited access object transfers priority, the thread stops
+     * donating priority to the thread that has access.
+     *
+     * <p>
+     * The default implementation does not support removal and fails an
+     * assertion, so a queue that is used for timed waits must override it.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting for access on this
+     *		queue.
+     */
+    public boolean remove(KThread thread) {
+        Lib.assertNotReached(getClass().getName() +
+                " does not support removing waiting threads");
+        return false;
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -77,6 +77,12 @@ public class ThreadedKernel extends Kernel {
 //        CommunicatorTest.selfTest();
 //        Boat.selfTest();
 //        KThread.selfTest();
+//        SchedulerBenchmark.selfTest();
+//        SchedulerBenchmark.shareTest();
+//        SchedulerBenchmark.responseTest(4, 50);
+//        SchedulerBenchmark.fairnessTest(1000000);
+//        SchedulerBenchmark.deadlineTest(3, 3, 20);
+//        SchedulerBenchmark.currencyTest(10, 1000000);
 //        Semaphore.selfTest();
 //        SynchList.selfTest();
 //        if (Machine.bank() != null) {
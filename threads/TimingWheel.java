@@ -0,0 +1,345 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A hierarchical timing wheel: a set of timers, each with a deadline in
+ * clock ticks, that can be added and removed in constant time and that expire
+ * in deadline order.
+ * <p>
+ * <p>
+ * The wheel has <tt>numLevels</tt> levels of 64 slots. A slot at level
+ * <i>k</i> covers 64<sup><i>k</i></sup> ticks. A timer is kept at the level
+ * of the highest 6-bit group in which its deadline differs from the time the
+ * wheel has reached, and when the wheel reaches the start of a slot above
+ * level 0, the timers in it are cascaded to lower levels. Each level has a
+ * bitmap of its occupied slots, so advancing the wheel jumps straight from
+ * one occupied slot to the next, however far apart they are. Deadlines too
+ * far away for the top level wait in an overflow list.
+ * <p>
+ * <p>
+ * Timer nodes are pooled and reused. A node's generation changes every time
+ * it is freed, so a holder of a stale reference can tell it has been reused.
+ */
+class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     *
+     * @param now the current time.
+     */
+    TimingWheel(long now) {
+        Lib.assertTrue(now >= 0);
+
+        wheelTime = now;
+    }
+
+    /**
+     * Add a timer.
+     *
+     * @param deadline the time at which the timer expires.
+     * @return the timer's node, whose <tt>thread</tt> and <tt>callback</tt>
+     * are for the caller to fill in.
+     */
+    Node add(long deadline) {
+        Node node = freeNodes;
+        if (node != null)
+            freeNodes = node.next;
+        else
+            node = new Node();
+
+        node.deadline = deadline;
+        place(node);
+        size++;
+
+        return node;
+    }
+
+    /**
+     * Remove a timer that has not expired.
+     *
+     * @param node the timer's node.
+     */
+    void remove(Node node) {
+        Lib.assertTrue(node.list != notListed);
+
+        unlink(node);
+        size--;
+    }
+
+    /**
+     * Return whether a node is in the wheel, rather than expired or in the
+     * pool.
+     *
+     * @param node the node.
+     * @return <tt>true</tt> if the node's timer has been added and has
+     * neither been removed nor expired.
+     */
+    boolean contains(Node node) {
+        return node.list != notListed;
+    }
+
+    /**
+     * Return a node to the pool. The node must not be in the wheel.
+     *
+     * @param node the node.
+     */
+    void free(Node node) {
+        Lib.assertTrue(node.list == notListed);
+
+        node.generation++;
+        node.thread = null;
+        node.callback = null;
+        node.next = freeNodes;
+        freeNodes = node;
+    }
+
+    /**
+     * Advance the wheel to the specified time, and remove and return every
+     * timer whose deadline has passed, in deadline order.
+     *
+     * @param now the current time.
+     * @return the first expired node, linked to the rest through
+     * <tt>next</tt>, or <tt>null</tt> if none expired.
+     */
+    Node expire(long now) {
+        while (true) {
+            long time = nextSlotTime();
+            if (time > now)
+                break;
+
+            wheelTime = time;
+
+            // cascade from the top down, so that timers can fall through
+            // several levels at once
+            if (heads[overflow] != null &&
+                    (time & ((1L << (numLevels * bits)) - 1)) == 0)
+                cascade(overflow);
+
+            for (int level = numLevels - 1; level > 0; level--) {
+                if ((time & ((1L << (level * bits)) - 1)) == 0) {
+                    int list = level * slotsPerLevel + index(time, level);
+                    if (heads[list] != null)
+                        cascade(list);
+                }
+            }
+
+            int list = index(time, 0);
+            if (heads[list] != null)
+                cascade(list);
+        }
+
+        if (now > wheelTime)
+            wheelTime = now;
+
+        Node expired = heads[due];
+        for (Node node = expired; node != null; node = node.next) {
+            node.list = notListed;
+            size--;
+        }
+        heads[due] = tails[due] = null;
+
+        return expired;
+    }
+
+    /**
+     * Return the earliest time at which <tt>expire()</tt> may have something
+     * to do. No timer expires before this time, though one may not expire
+     * exactly then.
+     *
+     * @return the time, or <tt>Long.MAX_VALUE</tt> if there are no timers.
+     */
+    long nextEventTime() {
+        if (heads[due] != null)
+            return wheelTime;
+
+        return nextSlotTime();
+    }
+
+    /**
+     * Return the number of timers in the wheel.
+     *
+     * @return the number of timers.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the start of the first occupied slot after the time the wheel
+     * has reached, at any level.
+     */
+    private long nextSlotTime() {
+        long time = Long.MAX_VALUE;
+
+        for (int level = 0; level < numLevels; level++) {
+            int current = index(wheelTime, level);
+            if (current == slotsPerLevel - 1)
+                continue;
+
+            long later = occupied[level] & (-1L << (current + 1));
+            if (later != 0) {
+                int shift = level * bits;
+                long start = ((wheelTime >>> (shift + bits)) << (shift + bits)) |
+                        ((long) Long.numberOfTrailingZeros(later) << shift);
+                time = Math.min(time, start);
+            }
+        }
+
+        if (heads[overflow] != null) {
+            int shift = numLevels * bits;
+            time = Math.min(time, ((wheelTime >>> shift) + 1) << shift);
+        }
+
+        return time;
+    }
+
+    /**
+     * Put a node in the list for its deadline.
+     */
+    private void place(Node node) {
+        if (node.deadline <= wheelTime) {
+            insertDue(node);
+            return;
+        }
+
+        long differ = node.deadline ^ wheelTime;
+        int level = (63 - Long.numberOfLeadingZeros(differ)) / bits;
+
+        if (level >= numLevels)
+            append(node, overflow);
+        else
+            append(node, level * slotsPerLevel + index(node.deadline, level));
+    }
+
+    /**
+     * Move every node in a list to the list for its deadline, now that the
+     * wheel has reached the start of that list's slot.
+     */
+    private void cascade(int list) {
+        Node node = heads[list];
+        heads[list] = tails[list] = null;
+        if (list < overflow)
+            occupied[list / slotsPerLevel] &= ~(1L << (list % slotsPerLevel));
+
+        while (node != null) {
+            Node next = node.next;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void append(Node node, int list) {
+        node.list = list;
+        node.next = null;
+        node.prev = tails[list];
+
+        if (tails[list] == null)
+            heads[list] = node;
+        else
+            tails[list].next = node;
+        tails[list] = node;
+
+        if (list < overflow)
+            occupied[list / slotsPerLevel] |= 1L << (list % slotsPerLevel);
+    }
+
+    /**
+     * Put a node in the due list after every node with an earlier or equal
+     * deadline. Cascaded timers arrive in deadline order and go straight to
+     * the back; only a timer added with a deadline that has already passed
+     * may have to go further forward.
+     */
+    private void insertDue(Node node) {
+        Node prev = tails[due];
+        while (prev != null && prev.deadline > node.deadline)
+            prev = prev.prev;
+
+        node.list = due;
+        node.prev = prev;
+        node.next = (prev == null) ? heads[due] : prev.next;
+
+        if (node.next == null)
+            tails[due] = node;
+        else
+            node.next.prev = node;
+        if (prev == null)
+            heads[due] = node;
+        else
+            prev.next = node;
+    }
+
+    private void unlink(Node node) {
+        int list = node.list;
+
+        if (node.prev == null)
+            heads[list] = node.next;
+        else
+            node.prev.next = node.next;
+
+        if (node.next == null)
+            tails[list] = node.prev;
+        else
+            node.next.prev = node.prev;
+
+        if (heads[list] == null && list < overflow)
+            occupied[list / slotsPerLevel] &= ~(1L << (list % slotsPerLevel));
+
+        node.list = notListed;
+        node.prev = node.next = null;
+    }
+
+    private static int index(long time, int level) {
+        return (int) (time >>> (level * bits)) & (slotsPerLevel - 1);
+    }
+
+    /**
+     * A timer in the wheel.
+     */
+    static class Node {
+        /**
+         * The time at which this timer expires.
+         */
+        long deadline;
+        /**
+         * The thread to wake when this timer expires, if any.
+         */
+        KThread thread;
+        /**
+         * The callback to run when this timer expires, if any.
+         */
+        Runnable callback;
+        /**
+         * Incremented every time this node is returned to the pool.
+         */
+        int generation = 0;
+
+        Node prev, next;
+        int list = notListed;
+    }
+
+    /**
+     * The time up to which the wheel has been advanced.
+     */
+    private long wheelTime;
+    private int size = 0;
+
+    private static final int bits = 6;
+    private static final int slotsPerLevel = 1 << bits;
+    private static final int numLevels = 6;
+
+    /**
+     * The list of timers too far away for the top level.
+     */
+    private static final int overflow = numLevels * slotsPerLevel;
+    /**
+     * The list of timers that have expired but have not been returned.
+     */
+    private static final int due = overflow + 1;
+    private static final int notListed = -1;
+
+    private Node[] heads = new Node[due + 1];
+    private Node[] tails = new Node[due + 1];
+    private long[] occupied = new long[numLevels];
+
+    private Node freeNodes = null;
+}
@@ -121,7 +121,8 @@ public class UserProcess {
         UThread thread = new UThread(this);
         if (mainThread == null)
             mainThread = thread;
-        thread.setName(name).fork();
+        // the process and its children share one thread's worth of the CPU
+        thread.setName(name).newCurrency().fork();
 
         return true;
     }
@@ -200,28 +201,27 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        int memoryLength = Machine.processor().getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memoryLength)
             return 0;
 
-        int bound = Math.min(length, memory.length - vaddr), amount = 0;
-        for (int i = 0; i < bound; ++i) {
-            int vpn = vaddr + i;
-            TranslationEntry page = pageTable[vpn / pageSize];
+        int bound = Math.min(length, memoryLength - vaddr), amount = 0;
+        while (amount < bound) {
+            int addr = vaddr + amount;
+            TranslationEntry page = pageTable[addr / pageSize];
             if (page == null || !page.valid) {
                 Lib.debug('o', "Error when reading memory");
                 break;
             }
             page.used = true;
-            int ppn = page.ppn * pageSize + vpn % pageSize;
-            data[i] = memory[ppn];
-            amount = i + 1;
+            int chunk = Math.min(bound - amount, pageSize - addr % pageSize);
+            Machine.processor().readPhysMem(page.ppn * pageSize + addr % pageSize,
+                    data, offset + amount, chunk);
+            amount += chunk;
         }
 
-//        System.arraycopy(memory, vaddr, data, offset, amount);
-
         return amount;
     }
 
@@ -256,26 +256,26 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        int memoryLength = Machine.processor().getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memoryLength)
             return 0;
 
-        int bound = Math.min(length, memory.length - vaddr), amount = 0;
-        for (int i = 0; i < bound; ++i) {
-            int vpn = vaddr + i;
-            TranslationEntry page = pageTable[vpn / pageSize];
+        int bound = Math.min(length, memoryLength - vaddr), amount = 0;
+        while (amount < bound) {
+            int addr = vaddr + amount;
+            TranslationEntry page = pageTable[addr / pageSize];
             if (page == null || !page.valid || page.readOnly) {
                 Lib.debug('o', "Error when writing memory");
                 return -1;
             }
             page.used = true;
-            int ppn = page.ppn * pageSize + vpn % pageSize;
-            memory[ppn] = data[i];
-            amount = i + 1;
+            int chunk = Math.min(bound - amount, pageSize - addr % pageSize);
+            Machine.processor().writePhysMem(page.ppn * pageSize + addr % pageSize,
+                    data, offset + amount, chunk);
+            amount += chunk;
         }
-//        System.arraycopy(data, offset, memory, vaddr, amount);
 
         return amount;
     }